@@ -1,7 +1,33 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -11,8 +37,27 @@ import java.util.List;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The frames are split into shards, each caching the pages whose id hashes
+ * to it under its own latch and with its own eviction state, so that
+ * threads working on different pages rarely contend. A page whose shard
+ * only holds pinned or dirty pages borrows a frame from another default
+ * shard, and stays there until it leaves the pool; the pages of a sub-pool
+ * keep to its frames.
+ * <p>
+ * The latch of a shard guards its frames, i.e. their pages, pin counts and
+ * other per-frame state, its free frames and its eviction policy. The page
+ * table is concurrent, but only changes under the latch of the shard
+ * owning the frame, so a lookup is checked against the frame afterwards.
+ * Pages are written to disk under the latches of their shards, taken in
+ * shard order. latchAll() takes every latch in that order, for the log
+ * and the catalog to change what the shards rely on. The monitor of the
+ * pool guards the background threads and the settings they run with;
+ * the other settings are volatile and read without locking. The locks are
+ * taken in this order: pool monitor, version store, shard latches, log
+ * file, page.
  * 
- * @Threadsafe, all fields are final
+ * @Threadsafe
  */
 public class BufferPool {
     /** Bytes per page, including header. */
@@ -22,71 +67,1287 @@ public class BufferPool {
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
-    private final Page[] buffer;
+    
+    /**
+     * Number of frames the buffer pool of the database may grow to, by
+     * {@link #resize} or auto-tuning, from DEFAULT_PAGES.
+     */
+    public static final int DEFAULT_CAPACITY = 16384;
+    
+    /**
+     * Minimum number of frames per shard when the pool chooses the number
+     * of shards itself: one per processor, as far as the frames go.
+     */
+    public static final int MIN_SHARD_PAGES = 64;
+    
+    /** Maximum number of frames recycled by one large sequential scan. */
+    public static final int SCAN_RING_PAGES = 16;
+    
+    /**
+     * Fraction of dirty frames above which the background writer of a
+     * STEAL pool starts writing pages out.
+     */
+    public static final double DIRTY_THRESHOLD = 0.5;
+    
+    /** Milliseconds between two rounds of the background writer. */
+    private static final long WRITER_INTERVAL = 50;
+    
+    /** Maximum number of pages read at once when warming the pool up. */
+    public static final int WARM_UP_READ_PAGES = 64;
+    
+    /** Number of buckets in which page removals are stamped for read-ahead. */
+    private static final int REMOVAL_STAMPS = 1024;
+    
+    /**
+     * Fraction of the requests by which growing has to cut the misses for
+     * the auto-tuner to grow the pool.
+     */
+    public static final double TUNING_TOLERANCE = 0.01;
+    
+    private final Page[] buffer;	/* protected by the shard of the frame */
+    private volatile int numPages;	/* frames in use, out of buffer.length */
+    private final PageArena arena;	/* null unless off heap */
+    private final ConcurrentMap<PageId,Integer> pageTable;	/* resident page -> frame */
+    private final Shard[] shards;	/* the default shards, then the sub-pools */
+    private final int numDefaultShards, subPoolPages;
+    private final Map<String,Shard> subPools;
+    private volatile boolean steal = false;
+    private Thread writer = null;	/* protected by this */
+    private volatile PrintStream trace = null;
+    private volatile double scanRingThreshold = 1.0;
+    private volatile int readAheadDepth = 0;
+    private Executor readAhead = null;	/* protected by this, started lazily */
+    private final boolean[] prefetched;	/* protected by the shard of the frame */
+    private final int[] pinCounts;	/* protected by the shard of the frame */
+    private final int[] accessCounts;	/* protected by the shard of the frame */
+    private final int[] touchRounds;	/* protected by the shard of the frame */
+    private volatile int round = 1;	/* advanced by every auto-tuning round */
+    private volatile boolean tuning = false;
+    private Timer tuner = null;	/* protected by this */
+    private int minPages, maxPages;	/* protected by this */
+    private final Map<PageId,Long> ghosts;	/* evicted page -> eviction number */
+    private final int[] ghostHits;	/* protected by ghosts */
+    private long numEvictions = 0;	/* protected by ghosts */
+    private Timer snapshotTimer = null;	/* protected by this */
+    private final ConcurrentMap<TransactionId,Map<PageId,Integer>> pins;
+    private final Set<TransactionId> stealers;	/* running, with uncommitted pages on disk */
+    private final AtomicLong prefetchHits = new AtomicLong(),
+    		wastedPrefetches = new AtomicLong();
     public final LockManager lock;
-    private int evictIdx = 0;
+    private final VersionStore versions;
+    private final ConcurrentMap<TransactionId,Optimistic> optimistic;
+    
+    /**
+     * The definition of a named sub-pool: frames of their own, replacing
+     * their pages with a policy of their own, for the pages of the tables
+     * the catalog assigns to it. A small "keep" pool spares lookup tables
+     * from being evicted by other traffic, for instance, and a "recycle"
+     * pool confines large scans to a few frames.
+     * 
+     * @see Catalog#setBufferPool(int, String)
+     */
+    public static class SubPool {
+    	
+    	public final String name;
+    	public final int numPages;
+    	public final EvictionPolicy policy;
+    	
+    	/**
+    	 * @param policy a fresh policy choosing which page of the sub-pool
+    	 *     to evict.
+    	 */
+    	public SubPool(String name, int numPages, EvictionPolicy policy) {
+    		this.name = name;
+    		this.numPages = numPages;
+    		this.policy = policy;
+    	}
+    	
+    }
+    
+    /**
+     * The read and write sets of an optimistic transaction: the private
+     * copies of the pages it read, as of its snapshot, and the ids of those
+     * it requested for writing. The other transactions do not see its
+     * writes until it commits.
+     */
+    private static final class Optimistic {
+    	final Map<PageId,Page> reads = new HashMap<PageId,Page>();
+    	final Set<PageId> writes = new HashSet<PageId>();
+    }
     
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages and replaces
+     * them with the CLOCK policy, in as many shards as there are
+     * processors, provided each gets MIN_SHARD_PAGES frames.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+    	this(numPages, defaultShards(numPages));
+    }
+    
+    private static int defaultShards(int numPages) {
+    	return Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+    			numPages/MIN_SHARD_PAGES));
+    }
+    
+    /**
+     * Creates a BufferPool that caches up to numPages pages in numShards
+     * shards, each replacing its pages with the CLOCK policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param numShards number of independently latched shards.
+     */
+    public BufferPool(int numPages, int numShards) {
+    	this(numPages, clockPolicies(numShards), false);
+    }
+    
+    private static EvictionPolicy[] clockPolicies(int numShards) {
+    	EvictionPolicy[] policies = new EvictionPolicy[numShards];
+    	
+    	for (int i=0; i<numShards; i++) {
+    		policies[i] = new ClockPolicy();
+    	}
+    	return policies;
+    }
+    
+    /**
+     * Creates a BufferPool that caches up to numPages pages in one shard.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy a fresh policy choosing which page to evict.
+     */
+    public BufferPool(int numPages, EvictionPolicy policy) {
+    	this(numPages, policy, false);
+    }
+    
+    /**
+     * Creates a BufferPool that caches up to numPages pages in one shard,
+     * either on the heap or off heap.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy a fresh policy choosing which page to evict.
+     * @param offHeap whether to keep the frames in direct memory.
+     */
+    public BufferPool(int numPages, EvictionPolicy policy, boolean offHeap) {
+    	this(numPages, new EvictionPolicy[] {policy}, offHeap);
+    }
+    
+    /**
+     * Creates a BufferPool that caches up to numPages pages, split evenly
+     * into one shard per given policy.
+     * <p>
+     * Off heap, the frames live in direct memory and heap pages are kept
+     * there in their on-disk format, their tuples being decoded on
+     * access rather than materialized when the page is read. The heap usage
+     * of the pool then stays flat however large it is. A page that leaves
+     * the pool is copied to the heap for whoever still holds it.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policies fresh policies choosing which page to evict, one for
+     *     each shard.
+     * @param offHeap whether to keep the frames in direct memory.
+     */
+    public BufferPool(int numPages, EvictionPolicy[] policies, boolean offHeap) {
+    	this(numPages, policies, offHeap, new SubPool[0]);
+    }
+    
+    /**
+     * Creates a BufferPool that caches up to numPages pages in as many
+     * shards as BufferPool(int) would, plus the pages of the tables the
+     * catalog assigns to one of the given sub-pools in the frames of that
+     * sub-pool.
+     *
+     * @param numPages maximum number of pages in the default pool.
+     * @param subPools the named sub-pools, in addition to the default pool.
+     */
+    public BufferPool(int numPages, SubPool... subPools) {
+    	this(numPages, clockPolicies(defaultShards(numPages)), false, subPools);
+    }
+    
+    /**
+     * Creates a BufferPool like BufferPool(int, EvictionPolicy[], boolean),
+     * plus the given sub-pools, one shard each. A page whose table the
+     * catalog assigns to one of them is only ever cached there; all other
+     * pages go to the default pool.
+     *
+     * @param numPages maximum number of pages in the default pool.
+     * @param policies fresh policies choosing which page to evict, one for
+     *     each shard of the default pool.
+     * @param offHeap whether to keep the frames in direct memory.
+     * @param subPools the named sub-pools, in addition to the default pool.
+     */
+    public BufferPool(int numPages, EvictionPolicy[] policies, boolean offHeap,
+    		SubPool... subPools) {
+    	this(numPages, numPages, policies, offHeap, subPools);
+    }
+    
+    /**
+     * Creates a BufferPool like BufferPool(int) with numPages frames in
+     * use, which may be resized up to capacity frames. A frame not in use
+     * only costs its bookkeeping until a page is cached in it. The given
+     * sub-pools come in addition, and keep their size.
+     *
+     * @param numPages number of frames in use in this buffer pool.
+     * @param capacity maximum number of frames in this buffer pool.
+     * @param subPools the named sub-pools, in addition to the default pool.
+     * @throws IllegalArgumentException if capacity is below numPages
+     */
+    public static BufferPool withCapacity(int numPages, int capacity,
+    		SubPool... subPools) {
+    	return new BufferPool(numPages, capacity,
+    			clockPolicies(defaultShards(numPages)), false, subPools);
+    }
+    
+    private BufferPool(int numPages, int capacity, EvictionPolicy[] policies,
+    		boolean offHeap, SubPool[] subPools) {
         // Done
-    	buffer = new Page[numPages];
-    	lock = new LockManager(numPages);
+    	if (0 == policies.length || policies.length > Math.max(1, numPages)) {
+    		throw new IllegalArgumentException("bad number of shards");
+    	}
+    	if (capacity < numPages) {
+    		throw new IllegalArgumentException("bad capacity");
+    	}
+    	this.subPools = new HashMap<String,Shard>();
+    	numDefaultShards = policies.length;
+    	
+    	int subPoolPages = 0;
+    	
+    	for (SubPool subPool : subPools) {
+    		if (subPool.numPages < 1 || this.subPools.containsKey(subPool.name)) {
+    			throw new IllegalArgumentException("bad sub-pool "+subPool.name);
+    		}
+    		this.subPools.put(subPool.name, null);
+    		subPoolPages += subPool.numPages;
+    	}
+    	this.subPoolPages = subPoolPages;
+    	numPages += subPoolPages;
+    	capacity += subPoolPages;
+    	arena = offHeap? new PageArena(capacity) : null;
+    	buffer = new Page[capacity];
+    	prefetched = new boolean[capacity];
+    	pinCounts = new int[capacity];
+    	accessCounts = new int[capacity];
+    	touchRounds = new int[capacity];
+    	ghosts = new LinkedHashMap<PageId,Long>() {
+    		private static final long serialVersionUID = 1L;
+    		
+    		@Override protected boolean removeEldestEntry(Map.Entry<PageId,Long> eldest) {
+    			return size() > buffer.length;
+    		}
+    	};
+    	ghostHits = new int[capacity+1];
+    	pins = new ConcurrentHashMap<TransactionId,Map<PageId,Integer>>();
+    	pageTable = new ConcurrentHashMap<PageId,Integer>(numPages);
+    	shards = new Shard[numDefaultShards+subPools.length];
+    	for (int i=0, base=0; i<shards.length; i++) {
+    		if (i < numDefaultShards) {
+    			int size = defaultShardSize(capacity, i);
+    			
+    			shards[i] = new Shard(i, base, size, policies[i], null);
+    			shards[i].setLimit(defaultShardSize(numPages, i));
+    		} else {
+    			SubPool subPool = subPools[i-numDefaultShards];
+    			
+    			shards[i] = new Shard(i, base, subPool.numPages, subPool.policy, subPool.name);
+    			this.subPools.put(subPool.name, shards[i]);
+    		}
+    		base += shards[i].size;
+    	}
+    	lock = new LockManager();
+    	versions = new VersionStore();
+    	optimistic = new ConcurrentHashMap<TransactionId,Optimistic>();
+    	stealers = Collections.newSetFromMap(new ConcurrentHashMap<TransactionId,Boolean>());
+    	this.numPages = numPages;
+    }
+    
+    public static int getPageSize() {
+    	return PAGE_SIZE;
+    }
+    
+    /**
+     * @return the number of frames of default shard i when numPages frames
+     *     are in use, sub-pools included
+     */
+    private int defaultShardSize(int numPages, int i) {
+    	int numDefaultPages = numPages-subPoolPages;
+    	
+    	return numDefaultPages/numDefaultShards+(i<numDefaultPages%numDefaultShards? 1 : 0);
+    }
+    
+    /** @return the number of frames in use in this buffer pool, sub-pools included */
+    public int numPages() {
+    	return numPages;
+    }
+    
+    /** @return the number of frames this buffer pool may grow to */
+    public int capacity() {
+    	return buffer.length;
+    }
+    
+    /**
+     * Changes the number of frames in use online, up to the capacity the
+     * pool was created with: on the heap a frame costs next to nothing
+     * until a page is cached in it, and off heap its direct memory is only
+     * allocated on first use. Shrinking evicts the pages in excess right
+     * away as far as they are clean and unpinned; the others leave as soon
+     * as they can be evicted. Sub-pools keep their size: only the default
+     * pool is resized.
+     *
+     * @param numPages the number of frames in use, sub-pools included
+     * @throws IllegalArgumentException if the default pool would have
+     *     fewer frames than shards, or numPages is above the capacity
+     */
+    public synchronized void resize(int numPages) {
+    	if (numPages-subPoolPages < numDefaultShards || numPages > buffer.length) {
+    		throw new IllegalArgumentException("bad number of pages");
+    	}
+    	this.numPages = numPages;
+    	for (int i=0; i<numDefaultShards; i++) {
+    		shards[i].setLimit(defaultShardSize(numPages, i));
+    	}
+    }
+    
+    /**
+     * Lets the pool resize itself every period milliseconds, between
+     * minPages and maxPages frames, after the pages requested lately.
+     * <p>
+     * Evicted pages are remembered as ghosts. A request for a ghost is a
+     * miss that a pool larger by the number of evictions since would have
+     * served, which traces the miss-ratio curve above the current size. The
+     * pool grows as long as the curve falls by more than TUNING_TOLERANCE
+     * of the requests; otherwise it shrinks to its working set, i.e. the
+     * frames requested during the period. Both bounds include the
+     * sub-pools, whose size the tuner leaves alone. A non-positive period
+     * stops the auto-tuning.
+     */
+    public synchronized void setAutoTuning(int minPages, int maxPages, long period) {
+    	if (null != tuner) {
+    		tuner.cancel();
+    		tuner = null;
+    	}
+    	tuning = period > 0;
+    	synchronized (ghosts) {
+    		ghosts.clear();
+    		Arrays.fill(ghostHits, 0);
+    	}
+    	if (tuning) {
+    		if (minPages-subPoolPages < numDefaultShards || minPages > maxPages ||
+    				maxPages > buffer.length) {
+    			tuning = false;
+    			throw new IllegalArgumentException("bad bounds");
+    		}
+    		this.minPages = minPages;
+    		this.maxPages = maxPages;
+    		tuner = new Timer("BufferPool tuner", true);
+    		tuner.schedule(new TimerTask() {
+    			@Override public void run() {
+    				tune();
+    			}
+    		}, period, period);
+    	}
+    }
+    
+    /**
+     * Ends the current round of auto-tuning, resizing the pool after it.
+     *
+     * @return the number of frames in use from now on
+     */
+    synchronized int tune() {
+    	long requests = 0;
+    	int workingSet = 0;
+    	
+    	for (int i=0; i<numDefaultShards; i++) {
+    		Shard shard = shards[i];
+    		
+    		shard.latch.lock();
+    		try {
+    			requests += shard.requests;
+    			workingSet += shard.workingSet;
+    			shard.requests = 0;
+    			shard.workingSet = 0;
+    		} finally {
+    			shard.latch.unlock();
+    		}
+    	}
+    	round++;
+    	
+    	int[] hits;
+    	
+    	synchronized (ghosts) {
+    		hits = ghostHits.clone();
+    		Arrays.fill(ghostHits, 0);
+    	}
+    	if (0 == requests) {
+    		return numPages;
+    	}
+    	
+    	/* saved[n]: the misses n more frames would have saved */
+    	int room = Math.max(0, maxPages-numPages);
+    	long[] saved = new long[room+1];
+    	int grow = 0;
+    	
+    	for (int n=1; n<=room; n++) {
+    		saved[n] = saved[n-1]+hits[n-1];
+    	}
+    	while (grow < room && saved[room]-saved[grow] > TUNING_TOLERANCE*requests) {
+    		grow++;
+    	}
+    	
+    	int target = grow > 0? numPages+grow : workingSet+subPoolPages;
+    	
+    	target = Math.max(minPages, Math.min(maxPages, target));
+    	if (target != numPages) {
+    		resize(target);
+    	}
+    	return target;
+    }
+    
+    /** Remembers a page evicted while auto-tuning as a ghost. */
+    private void addGhost(PageId pid) {
+    	if (tuning) {
+    		synchronized (ghosts) {
+    			ghosts.remove(pid);
+    			ghosts.put(pid, ++numEvictions);
+    		}
+    	}
+    }
+    
+    /** Records a miss on the specified page if it is a ghost. */
+    private void hitGhost(PageId pid) {
+    	if (tuning) {
+    		synchronized (ghosts) {
+    			Long evicted = ghosts.remove(pid);
+    			
+    			if (null != evicted) {
+    				ghostHits[(int)Math.min(numEvictions-evicted, buffer.length)]++;
+    			}
+    		}
+    	}
+    }
+    
+    /** @return whether this buffer pool has a sub-pool of the given name */
+    public boolean hasSubPool(String name) {
+    	return subPools.containsKey(name);
+    }
+    
+    /** @return the number of shards this buffer pool is split into */
+    public int numShards() {
+    	return shards.length;
+    }
+    
+    /**
+     * @return the shard whose frame holds the specified page if it is
+     *     resident, else the sub-pool the catalog assigns its table to, if
+     *     this pool has it, else the default shard its id hashes to. A page
+     *     stays in its shard until it leaves the pool, even if its table is
+     *     assigned elsewhere meanwhile.
+     */
+    private Shard shardOf(PageId pid) {
+    	Integer idx = pageTable.get(pid);
+    	
+    	if (null != idx) {
+    		return shardAt(idx);
+    	}
+    	if (!subPools.isEmpty()) {
+    		String name = Database.getCatalog().getBufferPool(pid.getTableId());
+    		Shard shard = null == name? null : subPools.get(name);
+    		
+    		if (null != shard) {
+    			return shard;
+    		}
+    	}
+    	return shards[(pid.hashCode()&0x7fffffff)%numDefaultShards];
+    }
+    
+    /** @return the shard frame idx belongs to */
+    private Shard shardAt(int idx) {
+    	for (Shard shard : shards) {
+    		if (idx < shard.base+shard.size) {
+    			return shard;
+    		}
+    	}
+    	throw new IllegalArgumentException("bad frame "+idx);
+    }
+    
+    /**
+     * Latches every shard, in order, so that the caller has the pool to
+     * itself until unlatchAll(). LogFile does so before touching the pool,
+     * since flushes latch a shard before logging.
+     */
+    void latchAll() {
+    	for (Shard shard : shards) {
+    		shard.latch.lock();
+    	}
+    }
+    
+    void unlatchAll() {
+    	for (int i=shards.length-1; i>=0; i--) {
+    		shards[i].latch.unlock();
+    	}
+    }
+    
+    /**
+     * Switches this pool between NO STEAL (the default) and STEAL.
+     * <p>
+     * In STEAL mode, a page dirtied by an uncommitted transaction may be
+     * written to disk when no clean page can be evicted, and a background
+     * writer thread keeps the fraction of dirty frames around
+     * DIRTY_THRESHOLD, so that transactions dirtying more pages than the
+     * pool holds can run. As with every flush, the before and after images
+     * are forced to the log first, and an aborting transaction is rolled
+     * back from the log by {@link LogFile#logAbort}. Switching STEAL off
+     * waits for the pages being stolen, and stops the writer after its
+     * current round, which steals no more.
+     * <p>
+     * STEAL cannot be switched on while snapshot or optimistic transactions
+     * run: a stolen page read back from disk holds uncommitted data, which
+     * they would take for the last committed version. For the same reason,
+     * they cannot begin until the transactions whose pages were stolen
+     * complete, even once STEAL is off.
+     *
+     * @throws IllegalStateException if snapshots are running
+     */
+    public synchronized void setSteal(boolean steal) {
+    	if (steal && versions.hasSnapshots()) {
+    		throw new IllegalStateException("snapshots are running");
+    	}
+    	this.steal = steal;
+    	if (steal && null == writer) {
+    		writer = new Thread("BufferPool writer") {
+    			@Override public void run() {
+    				runWriter();
+    			}
+    		};
+    		writer.setDaemon(true);
+    		writer.start();
+    	} else if (!steal && null != writer) {
+    		/* not interrupted, which would close the file it is writing */
+    		writer = null;
+    	}
+    	if (!steal) {
+    		/* the pages are only stolen under a latch, with STEAL on */
+    		latchAll();
+    		unlatchAll();
+    	}
+    }
+    
+    /**
+     * Notes that the transaction which dirtied the specified page, if any,
+     * is having it stolen, i.e. written to disk before it commits. Called
+     * under the latch of the shard of the page.
+     */
+    private void markStolen(Page page) {
+    	TransactionId dirtier = page.isDirty();
+    	
+    	if (null != dirtier) {
+    		stealers.add(dirtier);
+    	}
+    }
+    
+    private void runWriter() {
+    	Thread self = Thread.currentThread();
+    	
+    	try {
+	    	for (;;) {
+	    		synchronized (this) {
+	    			if (writer != self) {
+	    				return;
+	    			}
+	    		}
+	    		for (Shard shard : shards) {
+	    			shard.writeDirtyPages();
+	    		}
+	    		Thread.sleep(WRITER_INTERVAL);
+	    	}
+    	} catch (InterruptedException e) {
+    		return;
+    	}
+    }
+    
+    /**
+     * Sets the size, as a fraction of the pool, above which a sequential
+     * scan loads its pages through a private ring of frames rather than
+     * competing with other transactions for the whole pool. By default only
+     * scans that could not be cached entirely anyway (fraction 1.0) do so.
+     */
+    public void setScanRingThreshold(double fraction) {
+    	if (fraction < 0) {
+    		throw new IllegalArgumentException("negative threshold");
+    	}
+    	scanRingThreshold = fraction;
+    }
+    
+    /**
+     * Creates the ring of frames through which a sequential scan of the
+     * given number of pages should load them.
+     * 
+     * @return the ring, or null if the scan is small enough to use the
+     *     whole pool
+     */
+    BufferRing newScanRing(int numScanPages) {
+    	if (numScanPages <= scanRingThreshold*numPages) {
+    		return null;
+    	} else {
+    		return new BufferRing(Math.max(1, Math.min(SCAN_RING_PAGES, numPages>>2)),
+    				shards.length);
+    	}
+    }
+    
+    /**
+     * Sets how many pages ahead of its current position a sequential scan
+     * asks a background thread to read into the pool. 0 disables read-ahead.
+     */
+    public void setReadAheadDepth(int depth) {
+    	if (depth < 0) {
+    		throw new IllegalArgumentException("negative read-ahead depth");
+    	}
+    	readAheadDepth = depth;
+    }
+    
+    /**
+     * @return the read-ahead depth for a scan loading through the given
+     *     ring (or null), capped so that prefetched pages cannot push out
+     *     the pages the scan is about to consume
+     */
+    int getReadAheadDepth(BufferRing ring) {
+    	return Math.min(readAheadDepth, null == ring? numPages>>2 : ring.size()-1);
+    }
+    
+    /** @return the number of requests served by a page the read-ahead loaded */
+    public long getPrefetchHits() {
+    	return prefetchHits.get();
+    }
+    
+    /**
+     * @return the number of read-ahead reads that went to waste, because the
+     *     page was already resident or left the pool before being requested
+     */
+    public long getWastedPrefetches() {
+    	return wastedPrefetches.get();
+    }
+    
+    /**
+     * @return the number of deadlocks detected, each one aborting the
+     *     transaction whose wait would have closed it
+     */
+    public long getDeadlocks() {
+    	return lock.getDeadlocks();
+    }
+    
+    /** @return the statistics of the lock manager */
+    public LockStats getLockStats() {
+    	return lock.getStats();
+    }
+    
+    /** Sets how the lock manager deals with deadlocks. */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+    	lock.setDeadlockPolicy(policy);
+    }
+    
+    /**
+     * Asks the background I/O thread to read the specified page into the
+     * pool, unless it is resident by then. No lock is acquired: the page is
+     * merely cached for a later getPage.
+     * 
+     * @param ring the ring of the scan issuing the read-ahead, or null
+     */
+    void prefetchPage(final PageId pid, final BufferRing ring) {
+    	Executor executor;
+    	
+    	synchronized (this) {
+    		if (null == readAhead) {
+    			/* a single I/O thread that goes away when idle */
+    			readAhead = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS,
+    					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+    				@Override public Thread newThread(Runnable r) {
+    					Thread thread = new Thread(r, "BufferPool read-ahead");
+    					
+    					thread.setDaemon(true);
+    					return thread;
+    				}
+    			});
+    		}
+    		executor = readAhead;
+    	}
+    	executor.execute(new Runnable() {
+    		@Override public void run() {
+    			Shard shard = shardOf(pid);
+    			long stamp;
+    			
+    			shard.latch.lock();
+    			try {
+    				if (pageTable.containsKey(pid)) {
+    					return;
+    				}
+    				stamp = shard.removalStamp(pid);
+    			} finally {
+    				shard.latch.unlock();
+    			}
+    			
+    			Page page;
+    			
+    			try {
+    				page = readPage(pid, null);
+    			} catch (RuntimeException e) {
+    				return;		/* e.g. the table was dropped meanwhile */
+    			} catch (IOException e) {
+    				return;
+    			}
+    			shard.installPrefetched(page, stamp, ring);
+    		}
+    	});
+    }
+    
+    /**
+     * Writes the ids of the resident pages to the specified file, one
+     * "tableId pageNumber" line each (the access trace format), the most
+     * often requested first. The file is replaced atomically, so that a
+     * crash while saving leaves the previous snapshot intact.
+     */
+    public void saveResidency(File f) throws IOException {
+    	final Map<PageId,Integer> hotness = new HashMap<PageId,Integer>();
+    	
+    	for (Shard shard : shards) {
+    		shard.latch.lock();
+    		try {
+    			for (int i=shard.base; i<shard.base+shard.size; i++) {
+    				if (null != buffer[i]) {
+    					hotness.put(buffer[i].getId(), accessCounts[i]);
+    				}
+    			}
+    		} finally {
+    			shard.latch.unlock();
+    		}
+    	}
+    	
+    	List<PageId> pids = new ArrayList<PageId>(hotness.keySet());
+    	
+    	Collections.sort(pids, new Comparator<PageId>() {
+    		@Override public int compare(PageId a, PageId b) {
+    			return hotness.get(b).compareTo(hotness.get(a));
+    		}
+    	});
+    	
+    	File temp = new File(f.getPath()+".tmp");
+    	PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(temp)));
+    	
+    	try {
+    		for (PageId pid : pids) {
+    			out.println(pid.getTableId()+" "+pid.pageNumber());
+    		}
+    	} finally {
+    		out.close();
+    	}
+    	if (!temp.renameTo(f) && !(f.delete() && temp.renameTo(f))) {
+    		throw new IOException("cannot replace "+f);
+    	}
+    }
+    
+    /**
+     * Saves the residency snapshot to the specified file every period
+     * milliseconds from now on, in the background. A null file or a
+     * non-positive period stops the periodic saves.
+     */
+    public synchronized void setResidencySnapshot(final File f, long period) {
+    	if (null != snapshotTimer) {
+    		snapshotTimer.cancel();
+    		snapshotTimer = null;
+    	}
+    	if (null != f && period > 0) {
+    		snapshotTimer = new Timer("BufferPool snapshot", true);
+    		snapshotTimer.schedule(new TimerTask() {
+    			@Override public void run() {
+    				try {
+    					saveResidency(f);
+    				} catch (IOException e) {
+    					e.printStackTrace();
+    				}
+    			}
+    		}, period, period);
+    	}
+    }
+    
+    /**
+     * Warms the pool up from a snapshot written by saveResidency. The
+     * listed pages still in the catalog are read in file order, runs of
+     * consecutive pages with one large read each, and cached in free frames
+     * without taking any lock; the hottest pages are admitted last, so the
+     * eviction policy sees them as the most recently used. Pages already
+     * resident, or for which no frame is free, are skipped.
+     *
+     * @return the number of pages loaded
+     */
+    public int loadResidency(File f) throws IOException {
+    	Set<PageId> listed = new LinkedHashSet<PageId>();
+    	BufferedReader in = new BufferedReader(new FileReader(f));
+    	
+    	try {
+    		String line;
+    		
+    		while (listed.size() < numPages && null != (line = in.readLine())) {
+    			String[] parts = line.trim().split("\\s+");
+    			
+    			if (2 == parts.length) {
+    				try {
+    					listed.add(new HeapPageId(Integer.parseInt(parts[0]),
+    							Integer.parseInt(parts[1])));
+    				} catch (NumberFormatException e) {
+    					continue;
+    				}
+    			}
+    		}
+    	} finally {
+    		in.close();
+    	}
+    	
+    	List<PageId> hottest = new ArrayList<PageId>();
+    	
+    	for (PageId pid : listed) {
+    		try {
+    			DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    			
+    			if (file instanceof HeapFile && pid.pageNumber() >= 0 &&
+    					pid.pageNumber() < ((HeapFile)file).numPages()) {
+    				hottest.add(pid);
+    			}
+    		} catch (NoSuchElementException e) {
+    			continue;	/* the table is gone */
+    		}
+    	}
+    	
+    	List<PageId> sorted = new ArrayList<PageId>(hottest);
+    	Map<PageId,Page> pages = new HashMap<PageId,Page>();
+    	
+    	Collections.sort(sorted, new Comparator<PageId>() {
+    		@Override public int compare(PageId a, PageId b) {
+    			return a.getTableId() != b.getTableId()?
+    					Integer.compare(a.getTableId(), b.getTableId()) :
+    					Integer.compare(a.pageNumber(), b.pageNumber());
+    		}
+    	});
+    	for (int i=0, j; i<sorted.size(); i=j) {
+    		PageId first = sorted.get(i);
+    		
+    		/* extend the run [i, j) over the pages following first */
+    		j = i+1;
+    		while (j<sorted.size() && j-i<WARM_UP_READ_PAGES &&
+    				sorted.get(j).getTableId() == first.getTableId() &&
+    				sorted.get(j).pageNumber() == first.pageNumber()+j-i) {
+    			j++;
+    		}
+    		
+    		ByteBuffer data = ByteBuffer.allocate((j-i)*getPageSize());
+    		
+    		((HeapFile)Database.getCatalog().getDatabaseFile(first.getTableId()))
+    				.readPageData(first, data);
+    		for (int k=i; k<j; k++) {
+    			byte[] bytes = new byte[getPageSize()];
+    			
+    			data.position((k-i)*getPageSize());
+    			data.get(bytes);
+    			pages.put(sorted.get(k), new HeapPage(HeapPageId.valueOf(sorted.get(k)), bytes));
+    		}
+    	}
+    	
+    	int numLoaded = 0;
+    	
+    	for (int i=hottest.size()-1; i>=0; i--) {
+    		if (shardOf(hottest.get(i)).installWarm(pages.get(hottest.get(i)))) {
+    			numLoaded++;
+    		}
+    	}
+    	return numLoaded;
+    }
+    
+    /** @return whether the specified page is cached */
+    boolean isResident(PageId pid) {
+    	return pageTable.containsKey(pid);
+    }
+    
+    /**
+     * @return the name of the sub-pool whose frame holds the specified page,
+     *     or null if it is cached in the default pool or not at all
+     */
+    String subPoolOf(PageId pid) {
+    	Integer idx = pageTable.get(pid);
+    	
+    	return null == idx? null : shardAt(idx).name;
+    }
+    
+    /**
+     * Starts (or, given null, stops) writing the id of every requested page
+     * to the specified stream as a "tableId pageNumber" line. The recorded
+     * traces can be replayed against the different eviction policies.
+     */
+    public void setAccessTrace(PrintStream trace) {
+    	this.trace = trace;
+    }
+    
+    /**
+     * Retrieve the specified page with the associated permissions.
+     * Will acquire a lock and may block if that lock is held by another
+     * transaction.
+     * <p>
+     * The retrieved page should be looked up in the buffer pool.  If it
+     * is present, it should be returned.  If it is not present, it should
+     * be added to the buffer pool and returned.  If there is insufficient
+     * space in the buffer pool, an page should be evicted and the new page
+     * should be added in its place.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+    	// Done
+    	return getPage(tid, pid, perm, null);
+    }
+    
+    /**
+     * Retrieves the specified page like {@link #getPage(TransactionId,
+     * PageId, Permissions)}, but a page that is not resident is loaded
+     * into a frame of the given ring, if one can be recycled.
+     * 
+     * @param ring the ring of the sequential scan requesting the page, or
+     *     null
+     */
+    Page getPage(TransactionId tid, PageId pid, Permissions perm,
+    		BufferRing ring) throws TransactionAbortedException, DbException {
+    	return getPage(tid, pid, perm, ring, false);
+    }
+    
+    /**
+     * Retrieves the specified page like {@link #getPage(TransactionId,
+     * PageId, Permissions)} and pins it: the page is not evicted, so the
+     * reference stays valid, until the transaction unpins it with
+     * {@link #unpinPage} or completes. Pins nest.
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+    		throws TransactionAbortedException, DbException {
+    	return getPage(tid, pid, perm, null, true);
+    }
+    
+    /** Pins the specified page like pinPage, loading it through the ring. */
+    Page pinPage(TransactionId tid, PageId pid, Permissions perm,
+    		BufferRing ring) throws TransactionAbortedException, DbException {
+    	return getPage(tid, pid, perm, ring, true);
+    }
+    
+    private Page getPage(TransactionId tid, PageId pid, Permissions perm,
+    		BufferRing ring, boolean pin) throws TransactionAbortedException, DbException {
+    	PrintStream trace = this.trace;
+    	
+    	if (null != trace) {
+    		trace.println(pid.getTableId()+" "+pid.pageNumber());
+    	}
+    	if (optimistic.containsKey(tid)) {
+    		return getOptimisticPage(tid, pid, perm, ring);
+    	} else if (versions.isSnapshot(tid)) {
+    		if (!perm.equals(Permissions.READ_ONLY)) {
+    			throw new DbException("snapshot transactions are read-only");
+    		}
+    		return getSnapshotPage(tid, pid, ring);
+    	}
+    	lock.acquire(tid, pid, perm);
+    	for (;;) {
+    		Integer idx = pageTable.get(pid);
+    		
+    		if (null == idx) {
+    			idx = shardOf(pid).loadPage(pid, ring);
+    		} else {
+    			shardAt(idx).touchFrame(idx);
+    		}
+    		
+    		Page page = pin? shardAt(idx).pin(idx, pid) : buffer[idx];
+    		
+    		if (null != page && pid.equals(page.getId())) {
+    			if (pin) {
+    				Map<PageId,Integer> pinned = pinsOf(tid);
+    				
+    				synchronized (pinned) {
+    					Integer n = pinned.get(pid);
+    					
+    					pinned.put(pid, null == n? 1 : n+1);
+    				}
+    			}
+    			return page;
+    		}
+    		/* the frame was recycled since it was looked up */
+    	}
+    }
+    
+    /**
+     * Serves a page to a snapshot transaction, without any lock: a copy of
+     * the image as of the last commit before the snapshot began, which is
+     * the before image of the page unless a later commit overwrote it.
+     */
+    private Page getSnapshotPage(TransactionId tid, PageId pid, BufferRing ring)
+    		throws DbException {
+    	versions.latch.readLock().lock();
+    	try {
+    		Page version = versions.getVersion(tid, pid);
+    		
+    		if (null != version) {
+    			return version;
+    		}
+    		for (;;) {
+    			Integer idx = pageTable.get(pid);
+    			
+    			if (null == idx) {
+    				idx = shardOf(pid).loadPage(pid, ring);
+    			} else {
+    				shardAt(idx).touchFrame(idx);
+    			}
+    			
+    			Page page = buffer[idx];
+    			
+    			if (null != page && pid.equals(page.getId())) {
+    				return page.getBeforeImage();
+    			}
+    			/* the frame was recycled since it was looked up */
+    		}
+    	} finally {
+    		versions.latch.readLock().unlock();
+    	}
+    }
+    
+    /**
+     * Serves a page to an optimistic transaction: its private copy of the
+     * page as of its snapshot, copied on the first request only, so that
+     * it reads its own writes.
+     */
+    private Page getOptimisticPage(TransactionId tid, PageId pid, Permissions perm,
+    		BufferRing ring) throws DbException {
+    	Optimistic sets = optimistic.get(tid);
+    	Page page;
+    	
+    	synchronized (sets) {
+    		page = sets.reads.get(pid);
+    	}
+    	if (null == page) {
+    		page = getSnapshotPage(tid, pid, ring);
+    	}
+    	synchronized (sets) {
+    		if (!sets.reads.containsKey(pid)) {
+    			sets.reads.put(pid, page);
+    		}
+    		if (perm.equals(Permissions.READ_WRITE)) {
+    			sets.writes.add(pid);
+    		}
+    		return sets.reads.get(pid);
+    	}
+    }
+    
+    /**
+     * Starts a read-only snapshot for the transaction: from now on, the
+     * pages it reads are as of the last commit, whatever is committed
+     * later, and are read without taking any lock. The snapshot ends with
+     * the transaction.
+     *
+     * @throws IllegalStateException if the pool runs in STEAL mode, or a
+     *     transaction whose pages were stolen is still running
+     */
+    public synchronized void beginSnapshot(TransactionId tid) {
+    	checkNoSteal();
+    	versions.begin(tid);
+    }
+    
+    /**
+     * Runs the transaction optimistically: it reads through a snapshot like
+     * a read-only one and writes private copies of the pages, without
+     * taking any lock, until {@link #validate} makes its writes visible.
+     * Its read and write sets are kept until it completes.
+     *
+     * @throws IllegalStateException if the pool runs in STEAL mode, or a
+     *     transaction whose pages were stolen is still running
+     */
+    public synchronized void beginOptimistic(TransactionId tid) {
+    	checkNoSteal();
+    	versions.begin(tid);
+    	optimistic.put(tid, new Optimistic());
+    }
+    
+    /**
+     * Checks that no page on disk holds uncommitted data, which a snapshot
+     * would take for the last committed version once read back.
+     */
+    private void checkNoSteal() {
+    	if (steal) {
+    		throw new IllegalStateException("snapshots cannot run while STEAL is on");
+    	}
+    	if (!stealers.isEmpty()) {
+    		throw new IllegalStateException("transactions with stolen pages are running");
+    	}
+    }
+    
+    /**
+     * Validates an optimistic transaction about to commit, and installs its
+     * writes in the pool as if it had made them under two-phase locking: it
+     * locks the pages it read and the pages it wrote, then checks that none
+     * was committed since its snapshot began. The locks, kept until the
+     * transaction completes, stop the pages from changing from then on.
+     * Other transactions are only checked not to have been wounded, under
+     * wound-wait, since their last request.
+     *
+     * @throws TransactionAbortedException if validation failed, a lock
+     *     could not be acquired, or the transaction was wounded; the
+     *     transaction must then abort
+     */
+    public void validate(TransactionId tid)
+    		throws TransactionAbortedException, DbException {
+    	lock.checkWounded(tid);
+    	
+    	Optimistic sets = optimistic.get(tid);
+    	
+    	if (null == sets) {
+    		return;
+    	}
+    	
+    	List<PageId> pids;
+    	Map<PageId,Page> dirty = new HashMap<PageId,Page>();
+    	
+    	synchronized (sets) {
+    		pids = new ArrayList<PageId>(sets.reads.keySet());
+    		for (PageId pid : sets.writes) {
+    			Page page = sets.reads.get(pid);
+    			
+    			if (null != page.isDirty()) {
+    				dirty.put(pid, page);
+    			}
+    		}
+    	}
+    	/* in page order, so that validating transactions rarely deadlock */
+    	Collections.sort(pids, new Comparator<PageId>() {
+    		@Override public int compare(PageId a, PageId b) {
+    			return a.getTableId() != b.getTableId()?
+    					Integer.compare(a.getTableId(), b.getTableId()) :
+    					Integer.compare(a.pageNumber(), b.pageNumber());
+    		}
+    	});
+    	for (PageId pid : pids) {
+    		lock.acquire(tid, pid, dirty.containsKey(pid)?
+    				Permissions.READ_WRITE : Permissions.READ_ONLY);
+    	}
+    	versions.latch.readLock().lock();
+    	try {
+    		for (PageId pid : pids) {
+    			if (versions.isOverwritten(tid, pid)) {
+    				throw new TransactionAbortedException();
+    			}
+    		}
+    	} finally {
+    		versions.latch.readLock().unlock();
+    	}
+    	optimistic.remove(tid);
+    	versions.end(tid);
+    	for (Page copy : dirty.values()) {
+    		HeapPage page = (HeapPage)getPage(tid, copy.getId(), Permissions.READ_WRITE);
+    		
+    		try {
+    			page.setPageData((HeapPage)copy);
+    		} catch (IOException e) {
+    			throw new DbException("bad page copy: "+e.getMessage());
+    		}
+    		page.markDirty(true, tid);
+    	}
     }
     
-    public static int getPageSize() {
-    	return PAGE_SIZE;
+    private Map<PageId,Integer> pinsOf(TransactionId tid) {
+    	Map<PageId,Integer> pinned = pins.get(tid);
+    	
+    	if (null == pinned) {
+    		pins.putIfAbsent(tid, new HashMap<PageId,Integer>());
+    		pinned = pins.get(tid);
+    	}
+    	return pinned;
     }
-
+    
     /**
-     * Retrieve the specified page with the associated permissions.
-     * Will acquire a lock and may block if that lock is held by another
-     * transaction.
-     * <p>
-     * The retrieved page should be looked up in the buffer pool.  If it
-     * is present, it should be returned.  If it is not present, it should
-     * be added to the buffer pool and returned.  If there is insufficient
-     * space in the buffer pool, an page should be evicted and the new page
-     * should be added in its place.
+     * Releases one pin the transaction holds on the specified page. Does
+     * nothing once the transaction has completed, which released its pins,
+     * so that an iterator may be closed after the commit.
      *
-     * @param tid the ID of the transaction requesting the page
-     * @param pid the ID of the requested page
-     * @param perm the requested permissions on the page
+     * @throws IllegalArgumentException if the page is not pinned by tid
      */
-    public Page getPage(TransactionId tid, PageId pid, Permissions perm)
-        throws TransactionAbortedException, DbException {
-    	// Done
-    	int idx = -1;
+    public void unpinPage(TransactionId tid, PageId pid) {
+    	Map<PageId,Integer> pinned = pins.get(tid);
     	
-    	for (int i=0; i<buffer.length; i++) {
-    		if (null == buffer[i]) {
-    			idx = i;
-    		} else if (pid.equals(buffer[i].getId())) {
-    			try {
-    				lock.acquire(tid, i, perm);
-    			} catch (InterruptedException e) {
-    				throw new TransactionAbortedException();
+    	if (versions.isSnapshot(tid)) {
+    		return;	/* its pages are copies, never pinned */
+    	}
+    	if (null == pinned) {
+    		return;	/* it holds no pin, e.g. it has completed */
+    	}
+    	synchronized (pinned) {
+    		Integer n = pinned.get(pid);
+    		
+    		if (null != n) {
+    			if (1 == n) {
+    				pinned.remove(pid);
+    			} else {
+    				pinned.put(pid, n-1);
     			}
-    			return buffer[i];
+    			shardOf(pid).unpin(pid, 1);
+    			return;
     		}
     	}
-    	if (idx < 0) {
-    		evictPage();
-    		return getPage(tid, pid, perm);
+    	throw new IllegalArgumentException("page not pinned");
+    }
+    
+    /** @return the number of pins on the specified page, 0 if not resident */
+    public int getPinCount(PageId pid) {
+    	Shard shard = shardOf(pid);
+    	
+    	shard.latch.lock();
+    	try {
+    		Integer idx = shard.frameOf(pid);
+    		
+    		return null == idx? 0 : pinCounts[idx];
+    	} finally {
+    		shard.latch.unlock();
+    	}
+    }
+    
+    /**
+     * Reads the specified page from its file; off heap, a heap page is read
+     * straight into frame idx, or into a heap buffer if idx is null. A page
+     * of a mapped file stays a view of the mapping instead.
+     */
+    private Page readPage(PageId pid, Integer idx) throws IOException {
+    	DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    	
+    	if (null == arena || !(file instanceof HeapFile) || ((HeapFile)file).isMapped()) {
+    		return file.readPage(pid);
+    	} else if (null == idx) {
+    		ByteBuffer data = ByteBuffer.allocate(getPageSize());
+    		
+    		((HeapFile)file).readPageData(pid, data);
+    		return new HeapPage(HeapPageId.valueOf(pid), data, null);
     	} else {
-    		try {
-    			lock.acquire(tid, idx, perm);
-    		} catch (InterruptedException e) {
-    			throw new TransactionAbortedException();
-    		}
-    		return buffer[idx] = Database.getCatalog().getDatabaseFile
-					(pid.getTableId()).readPage(pid);
+    		((HeapFile)file).readPageData(pid, arena.frame(idx));
+    		return new HeapPage(HeapPageId.valueOf(pid), arena.frame(idx),
+    				arena.beforeImage(idx));
     	}
     }
-
+    
+    /**
+     * Off heap, moves a heap page read into a heap buffer to frame idx,
+     * unless it is a view of a mapped file.
+     */
+    private Page toFrame(int idx, Page page) {
+    	if (null == arena || !(page instanceof HeapPage) || ((HeapPage)page).isMapped()) {
+    		return page;
+    	}
+    	
+    	ByteBuffer frame = arena.frame(idx);
+    	
+    	frame.put(page.getPageData());
+    	frame.clear();
+    	return new HeapPage((HeapPageId)page.getId(), frame, arena.beforeImage(idx));
+    }
+    
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -98,28 +1359,30 @@ public class BufferPool {
      */
     public void releasePage(TransactionId tid, PageId pid) {
         // Done
-    	for (int i=0; i<buffer.length; i++) {
-    		if (null != buffer[i] && buffer[i].getId().equals(pid)) {
-    			if (lock.isHolding(tid, i)) {
-    				lock.release(tid, i);
-    				return;
-    			}
-    		}
+    	if (!lock.release(tid, pid)) {
+    		throw new IllegalArgumentException("page not locked");
     	}
-    	throw new IllegalArgumentException("page not in buffer");
     }
-
+    
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId pid) {
         // Done
-    	for (int i=0; i<buffer.length; i++) {
-    		if (null != buffer[i] && buffer[i].getId().equals(pid)) {
-    			return lock.isHolding(tid, i);
-    		}
+    	return lock.isHolding(tid, pid);
+    }
+    
+    /**
+     * Locks a whole table for the transaction, so that its pages are
+     * requested without locking each one. May block like getPage. Does
+     * nothing for snapshot and optimistic transactions, which take no lock
+     * until they validate.
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+    		throws TransactionAbortedException {
+    	if (!versions.isSnapshot(tid)) {
+    		lock.acquire(tid, tableId, LockMode.of(perm));
     	}
-        return false;
     }
-
+    
     /**
      * Release all locks associated with a given transaction.
      *
@@ -129,7 +1392,7 @@ public class BufferPool {
         // Done
     	transactionComplete(tid, true);
     }
-
+    
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
@@ -143,17 +1406,59 @@ public class BufferPool {
     	if (commit) {
     		flushPages(tid);
     	}
-    	for (int i=0; i<buffer.length; i++) {
-    		if (lock.isHolding(tid, i)) {
-    			if (!commit && null != buffer[i] &&
-    					tid.equals(buffer[i].isDirty())) {
-    				buffer[i] = null;
+    	
+    	Map<PageId,Integer> pinned = pins.remove(tid);
+    	
+    	if (null != pinned) {
+    		synchronized (pinned) {
+    			for (Map.Entry<PageId,Integer> entry : pinned.entrySet()) {
+    				shardOf(entry.getKey()).unpin(entry.getKey(), entry.getValue());
+    			}
+    		}
+    	}
+    	if (!commit) {
+    		discardPages(tid);
+    	}
+    	lock.releaseAll(tid);
+    	
+    	Optimistic sets = optimistic.remove(tid);
+    	
+    	if (!commit && null != sets) {
+    		synchronized (sets) {
+    			for (PageId pid : sets.writes) {
+    				undone(pid);
     			}
-    			lock.release(tid, i);
     		}
     	}
+    	versions.end(tid);
+    	stealers.remove(tid);
     }
-
+    
+    /**
+     * Drops the resident pages the specified transaction dirtied, so that
+     * they are read again from disk. Called on abort, first by the rollback
+     * under latchAll(), so that the writer cannot steal them in between.
+     */
+    void discardPages(TransactionId tid) {
+    	for (PageId pid : lock.getLockedPages(tid)) {
+    		Page page = shardOf(pid).residentPage(pid);
+    		
+    		if (null != page && tid.equals(page.isDirty())) {
+    			discardPage(pid);
+    			undone(pid);
+    		}
+    	}
+    }
+    
+    /** Tells the heap file of a page whose changes were thrown away. */
+    static void undone(PageId pid) {
+    	DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+    	
+    	if (file instanceof HeapFile) {
+    		((HeapFile)file).undone(pid.pageNumber());
+    	}
+    }
+    
     /**
      * Add a tuple to the specified table behalf of transaction tid.  Will
      * acquire a write lock on the page the tuple is added to(Lock 
@@ -177,7 +1482,7 @@ public class BufferPool {
     		page.markDirty(true, tid);
     	}
     }
-
+    
     /**
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from. May block if
@@ -197,91 +1502,628 @@ public class BufferPool {
     	Database.getCatalog().getDatabaseFile
     		(t.getRecordId().getPageId().getTableId()).deleteTuple(tid, t).markDirty(true, tid);
     }
-
+    
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // Done
-    	for (int i=0; i<buffer.length; i++) {
-    		if (null != buffer[i]) {
-    			flushPage(buffer[i].getId());
-    		}
+    	List<Page> pages = new ArrayList<Page>();
+    	
+    	for (Shard shard : shards) {
+    		shard.collectPages(pages);
     	}
+    	writePages(pages);
     }
-
+    
     /** Remove the specific page id from the buffer pool.
-        Needed by the recovery manager to ensure that the
-        buffer pool doesn't keep a rolled back page in its
-        cache.
+    	Needed by the recovery manager to ensure that the
+    	buffer pool doesn't keep a rolled back page in its
+    	cache.
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // Done
-    	for (int i=0; i<buffer.length; i++) {
-    		if (null != buffer[i] && pid.equals(buffer[i].getId())) {
-    			buffer[i] = null;
-    			break;
+    	shardOf(pid).discardPage(pid);
+    }
+    
+    /** Write all pages of the specified transaction to disk.
+     */
+    public void flushPages(TransactionId tid) throws IOException {
+        // Done
+    	List<Page> pages = new ArrayList<Page>(), dirty = new ArrayList<Page>();
+    	
+    	for (PageId pid : lock.getLockedPages(tid)) {
+    		Page page = shardOf(pid).residentPage(pid);
+    		
+    		if (null != page) {
+    			pages.add(page);
+    			if (null != page.isDirty()) {
+    				dirty.add(page);
+    			}
+    		}
+    	}
+    	/* snapshots see either none of the pages committed or all of them */
+    	versions.latch.writeLock().lock();
+    	try {
+    		if (!dirty.isEmpty()) {
+    			versions.commit(dirty);
+    		}
+    		writePages(dirty);
+    		for (Page page : pages) {
+    			page.setBeforeImage();
     		}
+    	} finally {
+    		versions.latch.writeLock().unlock();
     	}
     }
-
+    
     /**
-     * Flushes a certain page to disk
-     * @param pid an ID indicating the page to flush
+     * Writes the dirty ones among the given pages to disk as a group: the
+     * before and after images of all of them are logged and forced once,
+     * then each file gets its pages in ascending order, every run of
+     * consecutive pages in a single gathering write.
+     * <p>
+     * The shards of the pages stay latched, in shard order, from the copy
+     * of a page through marking it written, so that whichever path writes a
+     * page, the commit, the writer or an eviction, its images reach the log
+     * and the disk in the order they were taken. A caller holding a shard
+     * latch only writes pages of that shard. Only the shard latch is held,
+     * so the transaction owning a page can go on changing it meanwhile: a
+     * heap page is written from a copy, and stays dirty if it was changed
+     * after the copy was taken.
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
-        // Done
-    	for (int i=0; i<buffer.length; i++) {
-    		if (null != buffer[i] && buffer[i].getId().equals(pid)) {
-    			TransactionId dirtier = buffer[i].isDirty();
+    private void writePages(List<Page> pages) throws IOException {
+    	TreeMap<Integer,Shard> owners = new TreeMap<Integer,Shard>();
+    	
+    	for (Page page : pages) {
+    		Shard shard = shardOf(page.getId());
+    		
+    		owners.put(shard.id, shard);
+    	}
+    	for (Shard shard : owners.values()) {
+    		shard.latch.lock();
+    	}
+    	try {
+    		writeLatchedPages(pages);
+    	} finally {
+    		for (Shard shard : owners.descendingMap().values()) {
+    			shard.latch.unlock();
+    		}
+    	}
+    }
+    
+    private void writeLatchedPages(List<Page> pages) throws IOException {
+    	LogFile log = Database.getLogFile();
+    	Map<Integer,List<Page>> tables = new HashMap<Integer,List<Page>>();
+    	List<Page> dirty = new ArrayList<Page>(), images = new ArrayList<Page>();
+    	
+    	for (Page page : pages) {
+    		Page image = page instanceof HeapPage && null != page.isDirty()?
+    				((HeapPage)page).writeImage() : page;
+    		TransactionId dirtier = image.isDirty();
+    		
+    		if (null != dirtier) {
+    			int tableId = page.getId().getTableId();
     			
-    			if (null != dirtier) {
-    				Database.getLogFile().logWrite(dirtier, buffer[i].getBeforeImage(), buffer[i]);
-    				Database.getLogFile().force();
-    				Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(buffer[i]);
-    				buffer[i].markDirty(false, buffer[i].isDirty());
+    			log.logWrite(dirtier, page.getBeforeImage(), image);
+    			if (!tables.containsKey(tableId)) {
+    				tables.put(tableId, new ArrayList<Page>());
     			}
-    			break;
+    			tables.get(tableId).add(image);
+    			dirty.add(page);
+    			images.add(image);
     		}
     	}
-    }
-
-    /** Write all pages of the specified transaction to disk.
-     */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
-        // Done
-    	for (int i=0; i<buffer.length; i++) {
-    		if (null != buffer[i] && lock.isHolding(tid, i)) {
-    			flushPage(buffer[i].getId());
-    			buffer[i].setBeforeImage();
+    	if (dirty.isEmpty()) {
+    		return;
+    	}
+    	log.force();
+    	for (Map.Entry<Integer,List<Page>> entry : tables.entrySet()) {
+    		DbFile file = Database.getCatalog().getDatabaseFile(entry.getKey());
+    		
+    		if (file instanceof HeapFile) {
+    			((HeapFile)file).writePages(entry.getValue());
+    		} else {
+    			for (Page page : entry.getValue()) {
+    				file.writePage(page);
+    			}
+    		}
+    	}
+    	for (int i=0; i<dirty.size(); i++) {
+    		if (dirty.get(i) instanceof HeapPage) {
+    			((HeapPage)dirty.get(i)).markWritten((HeapPage)images.get(i));
+    		} else {
+    			dirty.get(i).markDirty(false, null);
     		}
     	}
     }
-
+    
     /**
-     * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * A partition of the pool: the pages whose id hashes to it, cached in
+     * its own range of frames. Everything but the latch itself is protected
+     * by the latch, and its policy numbers the frames from 0.
      */
-    private synchronized void evictPage() throws DbException {
-        // Done
-    	for (int init=evictIdx; null!=buffer[evictIdx] && 
-    			null!=buffer[evictIdx].isDirty(); ) {
-    		evictIdx = (evictIdx+1)%buffer.length;
-    		if (init == evictIdx) {
-    			throw new DbException("no non-dirty page to evict");
+    private final class Shard {
+    	
+    	final ReentrantLock latch = new ReentrantLock();
+    	final int id, base, size;
+    	final String name;	/* of the sub-pool, null for a default shard */
+    	private final EvictionPolicy policy;
+    	private final Deque<Integer> freeFrames;
+    	private final EvictionPolicy.Candidates cleanFrames, residentFrames;
+    	private final long[] removalStamps = new long[REMOVAL_STAMPS];
+    	private long numRemovals = 0;
+    	private int writerIdx = 0;
+    	private int limit;	/* number of frames in use */
+    	long requests = 0;
+    	int workingSet = 0;	/* frames requested this round */
+    	
+    	Shard(int id, final int base, int size, EvictionPolicy policy, String name) {
+    		this.id = id;
+    		this.name = name;
+    		this.base = base;
+    		this.size = size;
+    		this.policy = policy;
+    		limit = size;
+    		freeFrames = new ArrayDeque<Integer>(size);
+    		for (int i=base; i<base+size; i++) {
+    			freeFrames.add(i);
+    		}
+    		cleanFrames = new EvictionPolicy.Candidates() {
+    			@Override public boolean isEvictable(int frame) {
+    				Page page = buffer[base+frame];
+    				
+    				return null != page && null == page.isDirty() &&
+    						0 == pinCounts[base+frame];
+    			}
+    		};
+    		residentFrames = new EvictionPolicy.Candidates() {
+    			@Override public boolean isEvictable(int frame) {
+    				return null != buffer[base+frame] && 0 == pinCounts[base+frame];
+    			}
+    		};
+    	}
+    	
+    	/**
+    	 * Brings the specified page into a frame unless it is already
+    	 * resident.
+    	 *
+    	 * @return the index of the frame holding the page
+    	 */
+    	int loadPage(PageId pid, BufferRing ring) throws DbException {
+    		Shard owner;
+    		
+    		latch.lock();
+    		try {
+    			Integer idx = pageTable.get(pid);
+    			
+    			owner = null == idx? shardOf(pid) : null;
+    			if (this == owner) {
+    				if (null == name) {
+    					hitGhost(pid);
+    				}
+    				try {
+    					idx = fetchPage(pid, ring);
+    				} catch (DbException e) {
+    					idx = fetchElsewhere(pid, e);
+    				}
+    			}
+    			if (null != idx) {
+    				return idx;
+    			}
+    		} finally {
+    			latch.unlock();
+    		}
+    		/* the table was assigned to another sub-pool meanwhile */
+    		return owner.loadPage(pid, ring);
+    	}
+    	
+    	/**
+    	 * Reads the specified page into a frame of this shard, which the
+    	 * caller has latched.
+    	 *
+    	 * @return the index of the frame
+    	 * @throws DbException if every frame holds a pinned or dirty page
+    	 */
+    	private int fetchPage(PageId pid, BufferRing ring) throws DbException {
+    		int idx = allocateFrame(ring);
+    		Page page = null;
+    		
+    		try {
+    			page = readPage(pid, idx);
+    		} catch (IOException e) {
+    			throw new DbException(e.getMessage());
+    		} finally {
+    			if (null == page) {
+    				freeFrames.add(idx);
+    			}
+    		}
+    		installPage(idx, page, ring);
+    		countRequest(idx);
+    		return idx;
+    	}
+    	
+    	/**
+    	 * Reads the specified page into another default shard, this one
+    	 * being full of pinned or dirty pages. The page stays there until it
+    	 * leaves the pool; lookups find it through the page table, and
+    	 * loaders of the same page wait on this shard, which stays latched
+    	 * meanwhile. The other shards are only tried, not waited for, since
+    	 * they may come before this one in the latch order. A sub-pool keeps
+    	 * to its own frames.
+    	 *
+    	 * @param e the failure to find a frame in this shard, thrown again
+    	 *     if no other shard has one either
+    	 */
+    	private int fetchElsewhere(PageId pid, DbException e) throws DbException {
+    		if (null != name) {
+    			throw e;
+    		}
+    		for (int i=1; i<numDefaultShards; i++) {
+    			Shard shard = shards[(id+i)%numDefaultShards];
+    			
+    			if (shard.latch.tryLock()) {
+    				try {
+    					return shard.fetchPage(pid, null);
+    				} catch (DbException full) {
+    					/* try the next one */
+    				} finally {
+    					shard.latch.unlock();
+    				}
+    			}
+    		}
+    		throw e;
+    	}
+    	
+    	/**
+    	 * Installs a page read ahead, unless it became resident or left the
+    	 * pool since the given removal stamp was taken, which would make the
+    	 * read stale.
+    	 */
+    	void installPrefetched(Page page, long stamp, BufferRing ring) {
+    		PageId pid = page.getId();
+    		
+    		latch.lock();
+    		try {
+    			if (pageTable.containsKey(pid) || stamp != removalStamp(pid) ||
+    					this != shardOf(pid)) {
+    				wastedPrefetches.incrementAndGet();
+    			} else {
+    				try {
+    					int idx = allocateFrame(ring);
+    					
+    					installPage(idx, toFrame(idx, page), ring);
+    					prefetched[idx] = true;
+    				} catch (DbException e) {
+    					wastedPrefetches.incrementAndGet();
+    				}
+    			}
+    		} finally {
+    			latch.unlock();
+    		}
+    	}
+    	
+    	/**
+    	 * Finds a frame for a page about to be loaded: one recycled from the
+    	 * ring if possible, else a free one, evicting a page if there is
+    	 * none.
+    	 */
+    	private int allocateFrame(BufferRing ring) throws DbException {
+    		if (null != ring) {
+    			Integer idx = recycleFrame(ring);
+    			
+    			if (null != idx) {
+    				return idx;
+    			}
+    		}
+    		while (freeFrames.isEmpty() || size-freeFrames.size() >= limit) {
+    			try {
+    				evictPage();
+    			} catch (DbException e) {
+    				if (freeFrames.isEmpty()) {
+    					throw e;
+    				}
+    				break;	/* over the limit until a page can go */
+    			}
+    		}
+    		return freeFrames.poll();
+    	}
+    	
+    	/**
+    	 * Sets the number of frames in use, evicting pages until no more are
+    	 * resident or none can go.
+    	 */
+    	void setLimit(int limit) {
+    		latch.lock();
+    		try {
+    			this.limit = limit;
+    			while (size-freeFrames.size() > limit) {
+    				evictPage();
+    			}
+    		} catch (DbException e) {
+    			return;
+    		} finally {
+    			latch.unlock();
+    		}
+    	}
+    	
+    	/**
+    	 * Caches a page read to warm the pool up, provided it is not resident
+    	 * yet and a frame is free.
+    	 */
+    	boolean installWarm(Page page) {
+    		latch.lock();
+    		try {
+    			if (pageTable.containsKey(page.getId()) || freeFrames.isEmpty() ||
+    					size-freeFrames.size() >= limit || this != shardOf(page.getId())) {
+    				return false;
+    			}
+    			
+    			int idx = freeFrames.poll();
+    			
+    			installPage(idx, toFrame(idx, page), null);
+    			return true;
+    		} finally {
+    			latch.unlock();
+    		}
+    	}
+    	
+    	private void installPage(int idx, Page page, BufferRing ring) {
+    		buffer[idx] = page;
+    		accessCounts[idx] = 0;
+    		pageTable.put(page.getId(), idx);
+    		policy.admit(idx-base, page.getId());
+    		if (null != ring) {
+    			ring.add(id, idx, page.getId());
+    		}
+    	}
+    	
+    	/**
+    	 * Takes back the frame of the oldest page loaded through the full
+    	 * sub-ring of this shard, provided the page is still there and clean.
+    	 *
+    	 * @return the vacated frame, or null if the ring has none to offer
+    	 */
+    	private Integer recycleFrame(BufferRing ring) {
+    		PageId oldest = ring.oldestPage(id);
+    		
+    		if (null != oldest) {
+    			Integer idx = pageTable.get(oldest);
+    			
+    			if (null != idx && idx == ring.oldestFrame(id) &&
+    					cleanFrames.isEvictable(idx-base)) {
+    				clearFrame(idx);
+    				policy.remove(idx-base);
+    				return idx;
+    			}
+    		}
+    		return null;
+    	}
+    	
+    	/**
+    	 * Drops the page held by frame idx from the pool; the caller frees or
+    	 * reuses the frame.
+    	 */
+    	private void clearFrame(int idx) {
+    		PageId pid = buffer[idx].getId();
+    		
+    		if (null != arena && buffer[idx] instanceof HeapPage) {
+    			((HeapPage)buffer[idx]).detach();
+    		}
+    		pageTable.remove(pid);
+    		buffer[idx] = null;
+    		pinCounts[idx] = 0;
+    		touchRounds[idx] = 0;
+    		if (prefetched[idx]) {
+    			prefetched[idx] = false;
+    			wastedPrefetches.incrementAndGet();
+    		}
+    		removalStamps[(pid.hashCode()&0x7fffffff)%REMOVAL_STAMPS] = ++numRemovals;
+    	}
+    	
+    	/**
+    	 * @return the frame of this shard holding the specified page, or null
+    	 *     if it is not resident here; the caller holds the latch
+    	 */
+    	Integer frameOf(PageId pid) {
+    		Integer idx = pageTable.get(pid);
+    		
+    		return null != idx && idx >= base && idx < base+size? idx : null;
+    	}
+    	
+    	long removalStamp(PageId pid) {
+    		return removalStamps[(pid.hashCode()&0x7fffffff)%REMOVAL_STAMPS];
+    	}
+    	
+    	void touchFrame(int idx) {
+    		latch.lock();
+    		try {
+    			/* the frame may have changed hands since it was looked up */
+    			if (null != buffer[idx]) {
+    				policy.access(idx-base);
+    				accessCounts[idx]++;
+    				countRequest(idx);
+    			}
+    			if (prefetched[idx]) {
+    				prefetched[idx] = false;
+    				prefetchHits.incrementAndGet();
+    			}
+    		} finally {
+    			latch.unlock();
+    		}
+    	}
+    	
+    	/** Counts a request for frame idx towards the auto-tuning round. */
+    	private void countRequest(int idx) {
+    		if (null != name) {
+    			return;
+    		}
+    		requests++;
+    		if (touchRounds[idx] != round) {
+    			touchRounds[idx] = round;
+    			workingSet++;
+    		}
+    	}
+    	
+    	/**
+    	 * Pins the page in frame idx, provided it is still pid.
+    	 *
+    	 * @return the pinned page, or null if the frame changed hands
+    	 */
+    	Page pin(int idx, PageId pid) {
+    		latch.lock();
+    		try {
+    			Page page = buffer[idx];
+    			
+    			if (null != page && pid.equals(page.getId())) {
+    				pinCounts[idx]++;
+    				return page;
+    			}
+    			return null;
+    		} finally {
+    			latch.unlock();
+    		}
+    	}
+    	
+    	/** Releases n pins on the specified page if it is still resident. */
+    	void unpin(PageId pid, int n) {
+    		latch.lock();
+    		try {
+    			Integer idx = frameOf(pid);
+    			
+    			if (null != idx) {
+    				pinCounts[idx] = Math.max(0, pinCounts[idx]-n);
+    			}
+    		} finally {
+    			latch.unlock();
     		}
     	}
-    	if (null != buffer[evictIdx]) {
+    	
+    	void discardPage(PageId pid) {
+    		latch.lock();
+    		try {
+    			Integer idx = frameOf(pid);
+    			
+    			if (null != idx) {
+    				clearFrame(idx);
+    				freeFrames.add(idx);
+    				policy.remove(idx-base);
+    			}
+    		} finally {
+    			latch.unlock();
+    		}
+    	}
+    	
+    	/** Collects the resident pages of this shard. */
+    	void collectPages(List<Page> pages) {
+    		latch.lock();
+    		try {
+    			for (int i=base; i<base+size; i++) {
+    				if (null != buffer[i]) {
+    					pages.add(buffer[i]);
+    				}
+    			}
+    		} finally {
+    			latch.unlock();
+    		}
+    	}
+    	
+    	/** @return the specified page if it is resident, else null */
+    	Page residentPage(PageId pid) {
+    		latch.lock();
+    		try {
+    			Integer idx = frameOf(pid);
+    			
+    			return null == idx? null : buffer[idx];
+    		} finally {
+    			latch.unlock();
+    		}
+    	}
+    	
+    	/**
+    	 * Flushes a certain page to disk
+    	 * @param pid an ID indicating the page to flush
+    	 */
+    	private void flushPage(PageId pid) throws IOException {
+    		Integer idx = frameOf(pid);
+    		
+    		if (null != idx) {
+    			writePages(Collections.singletonList(buffer[idx]));
+    		}
+    	}
+    	
+    	/**
+    	 * Once more than DIRTY_THRESHOLD of the frames are dirty in STEAL
+    	 * mode, writes pages out as a group until only half as many are.
+    	 */
+    	void writeDirtyPages() {
+    		latch.lock();
     		try {
-				flushPage(buffer[evictIdx].getId());
-				buffer[evictIdx] = null;
-				evictIdx = (evictIdx+1)%buffer.length;
-			} catch (IOException e) {
-				throw new DbException(e.getMessage());
-			}
+    			List<Page> dirty = new ArrayList<Page>();
+    			int numDirty = 0;
+    			
+    			for (int i=base; i<base+size; i++) {
+    				if (null != buffer[i] && null != buffer[i].isDirty()) {
+    					numDirty++;
+    				}
+    			}
+    			if (steal && numDirty > DIRTY_THRESHOLD*limit) {
+    				for (int i=0; i<size && numDirty>DIRTY_THRESHOLD*limit/2; i++) {
+    					Page page = buffer[base+writerIdx];
+    					
+    					writerIdx = (writerIdx+1)%size;
+    					if (null != page && null != page.isDirty()) {
+    						markStolen(page);
+    						dirty.add(page);
+    						numDirty--;
+    					}
+    				}
+    				writePages(dirty);
+    			}
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    		} finally {
+    			latch.unlock();
+    		}
     	}
+    	
+    	/**
+    	 * Discards a page from the shard; pinned pages are never chosen.
+    	 * Flushes the page to disk to ensure dirty pages are updated on disk.
+    	 * A page changed while it was being flushed is kept, and another one
+    	 * chosen.
+    	 */
+    	private void evictPage() throws DbException {
+    		int idx = policy.victim(cleanFrames);
+    		
+    		for (int tries=0; idx < 0 && steal && tries < size; tries++) {
+    			idx = policy.victim(residentFrames);
+    			if (idx >= 0) {
+    				markStolen(buffer[base+idx]);
+    				try {
+    					flushPage(buffer[base+idx].getId());
+    				} catch (IOException e) {
+    					policy.admit(idx, buffer[base+idx].getId());
+    					throw new DbException(e.getMessage());
+    				}
+    				if (null != buffer[base+idx].isDirty()) {
+    					policy.admit(idx, buffer[base+idx].getId());
+    					idx = -1;
+    				}
+    			}
+    		}
+    		if (idx < 0) {
+    			throw new DbException("no non-dirty page to evict");
+    		}
+    		if (null == name) {
+    			addGhost(buffer[base+idx].getId());
+    		}
+    		clearFrame(base+idx);
+    		freeFrames.add(base+idx);
+    	}
+    
     }
 
 }
@@ -0,0 +1,61 @@
+package simpledb;
+
+/**
+ * A small ring of BufferPool frames owned by one large sequential scan.
+ * Once the ring is full, the scan recycles the frame holding the oldest
+ * page it brought in instead of evicting somebody else's page, so a scan
+ * of a big table cannot flush the working set out of the pool.
+ * <p>
+ * As a page may only go to a frame of the shard its id hashes to, the ring
+ * is split into one sub-ring per shard of the pool.
+ * 
+ * @see BufferPool#newScanRing(int)
+ */
+class BufferRing {
+	
+	private final int[][] frames;
+	private final PageId[][] pages;
+	private final int[] counts, nexts;
+	
+	public BufferRing(int size) {
+		this(size, 1);
+	}
+	
+	/**
+	 * Creates a ring of size frames shared evenly by numShards shards, with
+	 * at least one frame in each.
+	 */
+	public BufferRing(int size, int numShards) {
+		int shardSize = Math.max(1, size/numShards);
+		
+		frames = new int[numShards][shardSize];
+		pages = new PageId[numShards][shardSize];
+		counts = new int[numShards];
+		nexts = new int[numShards];
+	}
+	
+	public int size() {
+		return frames.length*frames[0].length;
+	}
+	
+	/** @return the oldest page loaded through a full sub-ring, or null */
+	public PageId oldestPage(int shard) {
+		return counts[shard] < frames[shard].length? null : pages[shard][nexts[shard]];
+	}
+	
+	/** @return the frame into which oldestPage(shard) was loaded */
+	public int oldestFrame(int shard) {
+		return frames[shard][nexts[shard]];
+	}
+	
+	/** Records that pid was loaded into frame, replacing the oldest entry. */
+	public void add(int shard, int frame, PageId pid) {
+		int next = nexts[shard];
+		
+		frames[shard][next] = frame;
+		pages[shard][next] = pid;
+		nexts[shard] = (next+1)%frames[shard].length;
+		counts[shard] = Math.min(counts[shard]+1, frames[shard].length);
+	}
+	
+}
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -20,6 +21,7 @@ public class Catalog {
 	private final Map<Integer,String> names;
 	private final Map<Integer,DbFile> dbfiles;
 	private final Map<Integer,String> pkeyFields;
+	private final Map<Integer,String> bufferPools;
 	
     /**
      * Constructor.
@@ -30,6 +32,7 @@ public class Catalog {
     	names = new HashMap<Integer,String>();
     	dbfiles = new HashMap<Integer,DbFile>();
     	pkeyFields =  new HashMap<Integer,String>();
+    	bufferPools = new ConcurrentHashMap<Integer,String>();
     }
 
     /**
@@ -49,14 +52,20 @@ public class Catalog {
     		if (names.get(id).equals(name)) {
     			if (id != tableid) {
     				names.remove(id);
-	    			dbfiles.remove(id);
+	    			close(dbfiles.remove(id));
 	    			pkeyFields.remove(id);
+	    			bufferPools.remove(id);
     			}
     			break;
     		}
     	}
     	names.put(tableid, name);
-    	dbfiles.put(tableid, file);
+    	
+    	DbFile replaced = dbfiles.put(tableid, file);
+    	
+    	if (file != replaced) {
+    		close(replaced);
+    	}
     	pkeyFields.put(tableid, pkeyField);
     }
 
@@ -142,27 +151,104 @@ public class Catalog {
     	throw new NoSuchElementException();
     }
     
+    /**
+     * Assigns the specified table to the named sub-pool of the buffer pool,
+     * whose frames then cache its pages apart from those of other tables. A
+     * null name leaves the table in the default pool. The assignment
+     * applies to the pages read from then on; those already cached stay
+     * where they are until they leave the pool.
+     * 
+     * @throws IllegalArgumentException if the buffer pool has no sub-pool
+     *     of the given name
+     * @see BufferPool.SubPool
+     */
+    public void setBufferPool(int tableid, String poolName) {
+    	BufferPool pool = Database.getBufferPool();
+    	
+    	if (null != poolName && !pool.hasSubPool(poolName)) {
+    		throw new IllegalArgumentException("unknown buffer pool "+poolName);
+    	}
+    	/* no shard is loading a page while the assignment changes */
+    	pool.latchAll();
+    	try {
+	    	if (null == poolName) {
+	    		bufferPools.remove(tableid);
+	    	} else {
+	    		bufferPools.put(tableid, poolName);
+	    	}
+    	} finally {
+    		pool.unlatchAll();
+    	}
+    }
+    
+    /**
+     * @return the name of the buffer sub-pool the specified table is
+     *     assigned to, or null
+     */
+    public String getBufferPool(int tableid) {
+    	return bufferPools.get(tableid);
+    }
+    
     /** Delete all tables from the catalog */
     public void clear() {
         // Done
+    	for (DbFile file : dbfiles.values()) {
+    		close(file);
+    	}
     	names.clear();
     	dbfiles.clear();
     	pkeyFields.clear();
+    	bufferPools.clear();
+    }
+    
+    /** Releases the descriptor of a file dropped from the catalog, if any. */
+    private static void close(DbFile file) {
+    	if (file instanceof HeapFile) {
+    		try {
+    			((HeapFile)file).close();
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    		}
+    	}
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A "pool name numPages" line declares a buffer sub-pool of that many
+     * frames, which the tables of the file may then be assigned to; if the
+     * file declares any, the buffer pool is replaced by one with these
+     * sub-pools, so the schema should be loaded before any transaction runs.
      * @param catalogFile
+     * @throws IllegalArgumentException if the file has an invalid entry
+     * @see Database#setSubPools(BufferPool.SubPool...)
      */
     public void loadSchema(String catalogFile) {
         String line = "";
         String baseFolder=new File(new File(catalogFile).getAbsolutePath()).getParent();
+        ArrayList<String> tables = new ArrayList<String>();
+        ArrayList<BufferPool.SubPool> subPools = new ArrayList<BufferPool.SubPool>();
         try {
             @SuppressWarnings("resource")
 			BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format pool poolName numPages
+                String[] els = line.trim().split("\\s+");
+                if (els[0].equals("pool") && !line.contains("(")) {
+                    if (els.length != 3)
+                        throw new IllegalArgumentException("Invalid catalog entry : " + line);
+                    subPools.add(new BufferPool.SubPool(els[1],
+                            Integer.parseInt(els[2]), new ClockPolicy()));
+                } else if (line.trim().length() != 0) {
+                    tables.add(line);
+                }
+            }
+            if (!subPools.isEmpty())
+                Database.setSubPools(subPools.toArray(new BufferPool.SubPool[0]));
+            
+            for (String table : tables) {
+                line = table;
+                //assume line is of the format name (field type, field type, ...) [pool poolName] [mapped]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -177,32 +263,41 @@ public class Catalog {
                         types.add(Type.INT_TYPE);
                     else if (els2[1].trim().toLowerCase().equals("string"))
                         types.add(Type.STRING_TYPE);
-                    else {
-                        System.out.println("Unknown type " + els2[1]);
-                        System.exit(0);
-                    }
+                    else
+                        throw new IllegalArgumentException("Unknown type " + els2[1]);
                     if (els2.length == 3) {
                         if (els2[2].trim().equals("pk"))
                             primaryKey = els2[0].trim();
-                        else {
-                            System.out.println("Unknown annotation " + els2[2]);
-                            System.exit(0);
-                        }
+                        else
+                            throw new IllegalArgumentException("Unknown annotation " + els2[2]);
                     }
                 }
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                String[] options = line.substring(line.indexOf(")") + 1).trim().split("\\s+");
+                String pool = null;
+                boolean mapped = false;
+                for (int i = 0; i < options.length; i++) {
+                    if (options[i].equals("pool") && i + 1 < options.length)
+                        pool = options[++i];
+                    else if (options[i].equals("mapped"))
+                        mapped = true;
+                    else if (options[i].length() != 0)
+                        throw new IllegalArgumentException("Unknown table option " + options[i]);
+                }
+                if (null != pool && !Database.getBufferPool().hasSubPool(pool))
+                    throw new IllegalArgumentException("Unknown buffer pool " + pool);
+                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t, mapped);
                 addTable(tabHf,name,primaryKey);
+                if (null != pool)
+                    setBufferPool(tabHf.getId(), pool);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
-            e.printStackTrace();
-            System.exit(0);
+            throw new RuntimeException(e);
         } catch (IndexOutOfBoundsException e) {
-            System.out.println ("Invalid catalog entry : " + line);
-            System.exit(0);
+            throw new IllegalArgumentException("Invalid catalog entry : " + line);
         }
     }
 }
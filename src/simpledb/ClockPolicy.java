@@ -0,0 +1,63 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * The CLOCK approximation of LRU: a hand sweeps over the frames, giving each
+ * frame that was requested since the last sweep a second chance.
+ */
+public class ClockPolicy implements EvictionPolicy {
+	
+	private boolean[] resident = new boolean[0];
+	private boolean[] referenced = new boolean[0];
+	private int numFrames = 0;
+	private int hand = 0;
+
+	@Override
+	public void admit(int frame, PageId pid) {
+		if (frame >= resident.length) {
+			int len = Math.max(frame+1, resident.length<<1);
+			
+			resident = Arrays.copyOf(resident, len);
+			referenced = Arrays.copyOf(referenced, len);
+		}
+		numFrames = Math.max(numFrames, frame+1);
+		resident[frame] = true;
+		referenced[frame] = true;
+	}
+
+	@Override
+	public void access(int frame) {
+		if (frame < numFrames) {
+			referenced[frame] = true;
+		}
+	}
+
+	@Override
+	public void remove(int frame) {
+		if (frame < numFrames) {
+			resident[frame] = false;
+			referenced[frame] = false;
+		}
+	}
+
+	@Override
+	public int victim(Candidates candidates) {
+		/* two sweeps: the first one may only be clearing reference bits */
+		for (int i=0; i<(numFrames<<1); i++) {
+			int frame = hand;
+			
+			hand = (hand+1)%numFrames;
+			if (resident[frame]) {
+				if (referenced[frame]) {
+					referenced[frame] = false;
+				} else if (candidates.isEvictable(frame)) {
+					resident[frame] = false;
+					return frame;
+				}
+			}
+		}
+		return -1;
+	}
+	
+}
@@ -23,7 +23,9 @@ public class Database {
 
     private Database() {
         _catalog = new Catalog();
-        _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _bufferpool = BufferPool.withCapacity(BufferPool.DEFAULT_PAGES,
+                BufferPool.DEFAULT_CAPACITY);
+        LockStats.export(_bufferpool.getLockStats());
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -50,16 +52,36 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /**
+     * Replaces the buffer pool with an empty one of the default size plus
+     * the given sub-pools, which the catalog may then assign tables to, and
+     * returns it. Pages cached in the former pool are dropped, so this is
+     * meant to run before any transaction, e.g. while loading the schema.
+     */
+    public static BufferPool setSubPools(BufferPool.SubPool... subPools) {
+        return resetBufferPool(BufferPool.withCapacity(BufferPool.DEFAULT_PAGES,
+                BufferPool.DEFAULT_CAPACITY, subPools));
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- replace the buffer pool with the given one,
+     * e.g. one configured with another eviction policy or kept off heap,
+     * and return it
+     */
+    public static BufferPool resetBufferPool(BufferPool pool) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), pool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -70,6 +92,7 @@ public class Database {
             e.printStackTrace();
         }
 //        _instance._bufferpool = new BufferPool(pages);
+        LockStats.export(pool.getLockStats());
         return _instance.get()._bufferpool;
     }
 
@@ -0,0 +1,30 @@
+package simpledb;
+
+/**
+ * How the LockManager deals with transactions that would wait for each
+ * other in a cycle. Prevention compares the ages of the transactions, as
+ * given by their ids, when a lock request has to wait.
+ */
+public enum DeadlockPolicy {
+	
+	/**
+	 * Requests wait freely, and the one that would close a cycle in the
+	 * waits-for graph is aborted.
+	 */
+	DETECT,
+	
+	/**
+	 * An older transaction may wait for a younger one; a younger one asking
+	 * for a lock an older one holds or waits for is aborted (dies).
+	 */
+	WAIT_DIE,
+	
+	/**
+	 * A younger transaction may wait for an older one; an older one asking
+	 * for a lock a younger one holds or waits for aborts it (wounds it) and
+	 * waits for its locks. A wounded transaction that is not waiting aborts
+	 * on its next page request, or when it commits.
+	 */
+	WOUND_WAIT;
+	
+}
@@ -0,0 +1,46 @@
+package simpledb;
+
+/**
+ * EvictionPolicy decides which frame of the BufferPool gives up its page
+ * when a new page has to be brought in.
+ * <p>
+ * Frames are identified by their index in the BufferPool. The pool
+ * serializes all calls into a policy, so implementations need not be
+ * thread-safe themselves.
+ * 
+ * @see BufferPool#BufferPool(int, EvictionPolicy)
+ */
+public interface EvictionPolicy {
+
+	/** Tells the policy which frames may currently be given up. */
+	public interface Candidates {
+		public boolean isEvictable(int frame);
+	}
+	
+	/**
+	 * Called after the page pid has been read into a free frame.
+	 */
+	public void admit(int frame, PageId pid);
+	
+	/**
+	 * Called on every request for the page held by a resident frame.
+	 */
+	public void access(int frame);
+	
+	/**
+	 * Called when the page held by a frame is dropped for a reason other
+	 * than eviction (e.g. discarded on abort). Removing a frame the policy
+	 * does not track is a no-op.
+	 */
+	public void remove(int frame);
+	
+	/**
+	 * Chooses a frame to evict among the evictable candidates and stops
+	 * tracking it.
+	 * 
+	 * @return the index of the victim frame, or -1 if no candidate can be
+	 *     evicted
+	 */
+	public int victim(Candidates candidates);
+	
+}
@@ -0,0 +1,108 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * An intrusive doubly-linked list of frame indices, ordered from the
+ * least recently appended frame (head) to the most recent one (tail).
+ * All operations are O(1).
+ */
+class FrameList {
+	
+	static final int NIL = -1;
+	
+	private int[] prev = new int[0];
+	private int[] next = new int[0];
+	private boolean[] linked = new boolean[0];
+	private int head = NIL, tail = NIL, size = 0;
+	
+	private void ensureCapacity(int frame) {
+		if (frame >= linked.length) {
+			int len = Math.max(frame+1, linked.length<<1);
+			
+			prev = Arrays.copyOf(prev, len);
+			next = Arrays.copyOf(next, len);
+			linked = Arrays.copyOf(linked, len);
+		}
+	}
+	
+	public boolean contains(int frame) {
+		return frame < linked.length && linked[frame];
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return 0 == size;
+	}
+	
+	/** @return the oldest frame of the list, or NIL if it is empty */
+	public int first() {
+		return head;
+	}
+	
+	/** @return the frame appended after the given one, or NIL */
+	public int next(int frame) {
+		return next[frame];
+	}
+	
+	public void addLast(int frame) {
+		ensureCapacity(frame);
+		if (!linked[frame]) {
+			prev[frame] = tail;
+			next[frame] = NIL;
+			if (NIL == tail) {
+				head = frame;
+			} else {
+				next[tail] = frame;
+			}
+			tail = frame;
+			linked[frame] = true;
+			size++;
+		}
+	}
+	
+	public boolean remove(int frame) {
+		if (!contains(frame)) {
+			return false;
+		} else {
+			if (NIL == prev[frame]) {
+				head = next[frame];
+			} else {
+				next[prev[frame]] = next[frame];
+			}
+			if (NIL == next[frame]) {
+				tail = prev[frame];
+			} else {
+				prev[next[frame]] = prev[frame];
+			}
+			linked[frame] = false;
+			size--;
+			return true;
+		}
+	}
+	
+	public void moveToLast(int frame) {
+		if (tail != frame && remove(frame)) {
+			addLast(frame);
+		}
+	}
+	
+	/**
+	 * Unlinks and returns the oldest evictable frame of the list.
+	 * 
+	 * @return the victim, or NIL if no frame of the list is evictable
+	 */
+	public int pollFirst(EvictionPolicy.Candidates candidates) {
+		for (int frame=head; NIL!=frame; frame=next[frame]) {
+			if (candidates.isEvictable(frame)) {
+				remove(frame);
+				return frame;
+			}
+		}
+		return NIL;
+	}
+	
+}
@@ -1,7 +1,13 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -9,14 +15,45 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * A mapped HeapFile serves its pages from a memory mapping of the file, so
+ * that reading a page copies nothing: the page is a read-only view of the
+ * mapped bytes, decoded on access, and only copied to the heap when it is
+ * modified. Writes still go through the channel of the file, into the
+ * same page cache the mapping shows.
+ * <p>
+ * Insertions are pointed straight at a page with room by a free-space map,
+ * which is rebuilt from the pages on disk by the first insertion and kept
+ * up to date by insertions and deletions after that. The map is only a
+ * hint: a page it points to is checked under its lock before use.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
 
+	/** Number of idle page buffers kept for reads and writes of single pages. */
+	static final int POOLED_BUFFERS = 16;
+	
+	private static final BlockingQueue<ByteBuffer> buffers =
+			new ArrayBlockingQueue<ByteBuffer>(POOLED_BUFFERS);
+	
+	/** Size of the regions a mapped file is mapped in, in bytes. */
+	static final int REGION_BYTES = 1<<22;
+	
 	private final File file;
 	private final TupleDesc td;
+	private final boolean mapped;
+	private volatile MappedByteBuffer[] regions;	/* replaced under this */
+	private volatile FileChannel channel;	/* opened on first use, protected by this */
+	private volatile long length;	/* of the file, as of the last extension */
+	private final BitSet room;	/* pages believed to have a free slot, protected by itself */
+	private boolean roomKnown = false;	/* whether room covers the pages on disk */
+	
+	/** I/O on the channel of the file, which may be run again on a new channel. */
+	private interface ChannelIo<T> {
+		T run(FileChannel channel) throws IOException;
+	}
 	
     /**
      * Constructs a heap file backed by the specified file.
@@ -27,8 +64,26 @@ public class HeapFile implements DbFile {
      */
     public HeapFile(File file, TupleDesc td) {
         // Done
+    	this(file, td, false);
+    }
+    
+    /**
+     * Constructs a heap file backed by the specified file, and read through
+     * a memory mapping of it if mapped.
+     * 
+     * @param file
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param mapped
+     *            whether to serve pages from a mapping of the file.
+     */
+    public HeapFile(File file, TupleDesc td, boolean mapped) {
     	this.file = file;
     	this.td = td;
+    	this.mapped = mapped;
+    	this.regions = new MappedByteBuffer[0];
+    	this.length = file.length();
+    	this.room = new BitSet();
     }
 
     /**
@@ -41,6 +96,11 @@ public class HeapFile implements DbFile {
         return file;
     }
 
+    /** @return whether the pages of this file are views of a mapping of it */
+    public boolean isMapped() {
+    	return mapped;
+    }
+
     /**
      * Returns an ID uniquely identifying this HeapFile. Implementation note:
      * you will need to generate this tableid somewhere ensure that each
@@ -65,31 +125,193 @@ public class HeapFile implements DbFile {
     	return td;
     }
 
+    /**
+     * Returns the channel all I/O of this file goes through, opening it on
+     * first use and again if it was closed, e.g. by an interrupt.
+     */
+    private FileChannel channel() throws IOException {
+    	FileChannel channel = this.channel;
+    	
+    	if (null == channel || !channel.isOpen()) {
+    		synchronized (this) {
+    			if (null == this.channel || !this.channel.isOpen()) {
+    				this.channel = new RandomAccessFile(file, "rw").getChannel();
+    			}
+    			channel = this.channel;
+    		}
+    	}
+    	return channel;
+    }
+    
+    /**
+     * Runs the I/O with the interrupt status of the thread cleared, and sets
+     * it again afterwards: an interrupted thread would close the channel for
+     * every thread, and the I/O of a transaction aborted by an interrupt
+     * still has to happen. If the channel is closed meanwhile, by an
+     * interrupt or by close(), the I/O is run again on a new channel.
+     */
+    private <T> T uninterruptibly(ChannelIo<T> io) throws IOException {
+    	boolean interrupted = Thread.interrupted();
+    	
+    	try {
+    		for (;;) {
+    			try {
+    				return io.run(channel());
+    			} catch (ClosedChannelException e) {
+    				interrupted |= Thread.interrupted();
+    			}
+    		}
+    	} finally {
+    		if (interrupted) {
+    			Thread.currentThread().interrupt();
+    		}
+    	}
+    }
+    
+    /**
+     * Closes the channel to the file, releasing its descriptor; it is opened
+     * again by the next read or write.
+     */
+    public synchronized void close() throws IOException {
+    	if (null != channel) {
+    		channel.close();
+    		channel = null;
+    	}
+    }
+    
+    /** @return an empty page-sized direct buffer from the pool */
+    private static ByteBuffer takeBuffer() {
+    	ByteBuffer buffer = buffers.poll();
+    	
+    	if (null == buffer || buffer.capacity() != BufferPool.getPageSize()) {
+    		buffer = ByteBuffer.allocateDirect(BufferPool.getPageSize());
+    	}
+    	buffer.clear();
+    	return buffer;
+    }
+    
+    /** Returns a buffer taken by takeBuffer() to the pool, unless it is full. */
+    private static void giveBuffer(ByteBuffer buffer) {
+    	buffers.offer(buffer);
+    }
+    
+    /** Records that the file has been written up to end. */
+    private synchronized void extended(long end) {
+    	if (end > length) {
+    		length = end;
+    	}
+    }
+
+    /**
+     * Returns region r of the mapping of the file, mapped up to at least
+     * end. The region holding the end of the file is mapped again once the
+     * file has grown past it; views of the old mapping stay valid, as a
+     * mapping lasts until it is garbage collected.
+     */
+    private MappedByteBuffer region(int r, int end) throws IOException {
+    	MappedByteBuffer[] regions = this.regions;
+    	
+    	if (r < regions.length && null != regions[r] && regions[r].capacity() >= end) {
+    		return regions[r];
+    	}
+    	synchronized (this) {
+    		regions = Arrays.copyOf(this.regions, Math.max(r+1, this.regions.length));
+    		if (null == regions[r] || regions[r].capacity() < end) {
+    			final long start = 1L*REGION_BYTES*r, size = Math.min(REGION_BYTES, length-start);
+    			
+    			regions[r] = uninterruptibly(new ChannelIo<MappedByteBuffer>() {
+    				@Override public MappedByteBuffer run(FileChannel channel) throws IOException {
+    					return channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    				}
+    			});
+    			this.regions = regions;
+    		}
+    		return regions[r];
+    	}
+    }
+    
+    /**
+     * Returns a read-only view of the data of the specified page in the
+     * mapping of the file, or null if the page straddles two regions.
+     */
+    private ByteBuffer mappedPage(PageId pid) throws IOException {
+    	checkPage(pid);
+    	
+    	long pos = 1L*BufferPool.getPageSize()*pid.pageNumber();
+    	int offset = (int)(pos%REGION_BYTES), end = offset+BufferPool.getPageSize();
+    	
+    	if (end > REGION_BYTES) {
+    		return null;
+    	}
+    	
+    	ByteBuffer view = region((int)(pos/REGION_BYTES), end).duplicate();
+    	
+    	view.position(offset);
+    	view.limit(end);
+    	return view.slice();
+    }
+    
+    private void checkPage(PageId pid) {
+    	if (getId() != pid.getTableId() || pid.pageNumber() < 0 ||
+    			pid.pageNumber() >= numPages()) {
+    		throw new IllegalArgumentException("page not in the file");
+    	}
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
     	// Done
-    	if (getId() == pid.getTableId()) {
-    		int pgNo = pid.pageNumber();
+    	ByteBuffer buffer;
+    	
+    	try {
+    		if (mapped && null != (buffer = mappedPage(pid))) {
+    			return new HeapPage(HeapPageId.valueOf(pid), buffer, null);
+    		}
+    	} catch (IOException e) {
+    		throw new RuntimeException(e);
+    	}
+    	buffer = takeBuffer();
+    	try {
+    		byte[] bytes = new byte[BufferPool.getPageSize()];
     		
-    		if (pgNo>=0 && pgNo<numPages()) {
-    			byte[] bytes = HeapPage.createEmptyPageData();
-	    			
-    			try {
-    				RandomAccessFile raf = new RandomAccessFile(file, "r");
-    				
-    				try {
-    					raf.seek(1L*BufferPool.getPageSize()*pid.pageNumber());
-						raf.read(bytes, 0, BufferPool.getPageSize());
-						return new HeapPage(HeapPageId.valueOf(pid), bytes);
-    				} finally {
-    					raf.close();
-    				}
-    			} catch (IOException e) {
-    				throw new RuntimeException(e);
+    		readPageData(pid, buffer);
+    		buffer.flip();
+    		buffer.get(bytes);
+    		return new HeapPage(HeapPageId.valueOf(pid), bytes);
+    	} catch (IOException e) {
+    		throw new RuntimeException(e);
+    	} finally {
+    		giveBuffer(buffer);
+    	}
+    }
+    
+    /**
+     * Reads the raw data of the specified page into dst, from its position
+     * on, without decoding it; if dst has room for more, the pages following
+     * it are read along in the same request. Bytes past the end of the file
+     * read as 0.
+     */
+    void readPageData(PageId pid, final ByteBuffer dst) throws IOException {
+    	checkPage(pid);
+    	
+    	final long start = 1L*BufferPool.getPageSize()*pid.pageNumber();
+    	final int mark = dst.position();
+    	
+    	uninterruptibly(new ChannelIo<Void>() {
+    		@Override public Void run(FileChannel channel) throws IOException {
+    			long pos = start;
+    			int n = 0;
+    			
+    			dst.position(mark);
+    			while (dst.hasRemaining() && (n = channel.read(dst, pos)) >= 0) {
+    				pos += n;
     			}
+    			return null;
     		}
+    	});
+    	while (dst.hasRemaining()) {
+    		dst.put((byte)0);
     	}
-        throw new IllegalArgumentException("page not in the file");
     }
 
     // see DbFile.java for javadocs
@@ -98,25 +320,131 @@ public class HeapFile implements DbFile {
 		int pgNo = page.getId().pageNumber();
 		
 		if (pgNo>=0 && pgNo<=numPages()) {
-			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			final ByteBuffer buffer = takeBuffer();
+			final long start = 1L*BufferPool.getPageSize()*pgNo;
 			
 			try {
-				raf.seek(1L*BufferPool.getPageSize()*pgNo);
-				raf.write(page.getPageData(), 0, BufferPool.getPageSize());
+				buffer.put(page.getPageData(), 0, BufferPool.getPageSize());
+				buffer.flip();
+				extended(uninterruptibly(new ChannelIo<Long>() {
+					@Override public Long run(FileChannel channel) throws IOException {
+						long pos = start;
+						
+						buffer.rewind();
+						while (buffer.hasRemaining()) {
+							pos += channel.write(buffer, pos);
+						}
+						return pos;
+					}
+				}));
 				return;
 			} finally {
-				raf.close();
+				giveBuffer(buffer);
 			}
 		}
 		throw new IllegalArgumentException("pageId out of range");
     }
 
     /**
-     * Returns the number of pages in this HeapFile.
+     * Writes the specified pages of this file sorted by page number, each
+     * run of consecutive pages in one gathering write through the same
+     * channel. A run may start at most one page past the end of the file.
+     * The writes move the position of the channel, so they are serialized
+     * on this file; reads and writes of single pages do not use it.
+     */
+    synchronized void writePages(List<Page> pages) throws IOException {
+    	final List<Page> sorted = new ArrayList<Page>(pages);
+    	
+    	Collections.sort(sorted, new Comparator<Page>() {
+    		@Override public int compare(Page a, Page b) {
+    			return a.getId().pageNumber()-b.getId().pageNumber();
+    		}
+    	});
+    	uninterruptibly(new ChannelIo<Void>() {
+    		@Override public Void run(FileChannel channel) throws IOException {
+		    	for (int i=0, j; i<sorted.size(); i=j) {
+		    		int pgNo = sorted.get(i).getId().pageNumber();
+		    		
+		    		if (pgNo<0 || pgNo>numPages()) {
+		    			throw new IllegalArgumentException("pageId out of range");
+		    		}
+		    		for (j=i+1; j<sorted.size() &&
+		    				sorted.get(j).getId().pageNumber()==pgNo+j-i; j++);
+		    		
+		    		ByteBuffer[] srcs = new ByteBuffer[j-i];
+		    		long remaining = 1L*BufferPool.getPageSize()*srcs.length;
+		    		
+		    		for (int k=i; k<j; k++) {
+		    			srcs[k-i] = ByteBuffer.wrap(sorted.get(k).getPageData(),
+		    					0, BufferPool.getPageSize());
+		    		}
+		    		channel.position(1L*BufferPool.getPageSize()*pgNo);
+		    		while (remaining > 0) {
+		    			remaining -= channel.write(srcs);
+		    		}
+		    		extended(channel.position());
+		    	}
+		    	return null;
+    		}
+    	});
+    }
+
+    /**
+     * Returns the number of pages in this HeapFile, as of its last write
+     * past the end; the file itself is only asked when it is opened.
      */
     public int numPages() {
         // Done
-        return (int)(file.length()/BufferPool.getPageSize());
+        return (int)(length/BufferPool.getPageSize());
+    }
+
+    /**
+     * Returns the first page the free-space map believes to have a free
+     * slot, or the number of pages if there is none. The first call builds
+     * the map from the headers of the pages on disk, without locking them.
+     */
+    private int pageWithRoom() throws IOException {
+    	synchronized (room) {
+    		if (!roomKnown) {
+    			ByteBuffer buffer = takeBuffer();
+    			
+    			try {
+	    			for (int pgNo=0; pgNo<numPages(); pgNo++) {
+	    				HeapPageId pid = new HeapPageId(getId(), pgNo);
+	    				
+	    				buffer.clear();
+	    				readPageData(pid, buffer);
+	    				buffer.clear();
+	    				if (new HeapPage(pid, buffer, null).getNumEmptySlots() > 0) {
+	    					room.set(pgNo);
+	    				}
+	    			}
+    			} finally {
+    				giveBuffer(buffer);
+    			}
+    			roomKnown = true;
+    		}
+    		
+    		int pgNo = room.nextSetBit(0);
+    		
+    		return pgNo < 0? numPages() : Math.min(pgNo, numPages());
+    	}
+    }
+    
+    /** Records in the free-space map whether the page has a free slot. */
+    private void setRoom(int pgNo, boolean free) {
+    	synchronized (room) {
+    		room.set(pgNo, free);
+    	}
+    }
+    
+    /**
+     * Tells the free-space map that the changes an aborted transaction made
+     * to the page were thrown away, which may give back the slots its
+     * insertions took.
+     */
+    void undone(int pgNo) {
+    	setRoom(pgNo, true);
     }
 
     // see DbFile.java for javadocs
@@ -125,25 +453,44 @@ public class HeapFile implements DbFile {
         // Done
     	ArrayList<Page> list = new ArrayList<Page>();
     	BufferPool pool = Database.getBufferPool();
-    	int tableId = getId(), pgNo = 0;
+    	int tableId = getId();
     	
-    	for (; pgNo<numPages(); pgNo++) {
-    		HeapPage page = (HeapPage)pool.getPage(tid, new HeapPageId(tableId,pgNo), Permissions.READ_WRITE);
+    	for (;;) {
+    		int pgNo = pageWithRoom();
     		
-    		if (page.getNumEmptySlots() > 0) {
-    			page.insertTuple(t);
-    			list.add(page);
-    			break;
+    		if (pgNo < numPages()) {
+	    		HeapPageId pid = new HeapPageId(tableId, pgNo);
+	    		HeapPage page = (HeapPage)pool.pinPage(tid, pid, Permissions.READ_WRITE);
+	    		
+	    		try {
+		    		if (page.getNumEmptySlots() > 0) {
+		    			page.insertTuple(t);
+		    			page.markDirty(true, tid);	/* before it may be evicted */
+		    			list.add(page);
+		    		}
+		    		if (0 == page.getNumEmptySlots()) {
+		    			setRoom(pgNo, false);
+		    		}
+		    		if (!list.isEmpty()) {
+		    			return list;
+		    		}
+	    		} finally {
+	    			pool.unpinPage(tid, pid);
+	    		}
+    		} else {
+		    	/* 
+		    	 * Append an empty page and fill it through the buffer pool, so
+		    	 * that the insertion is logged and undone like any other.
+		    	 */
+		    	synchronized (this) {
+		    		if (pgNo == numPages()) {
+		    			writePage(new HeapPage(new HeapPageId(tableId, pgNo),
+		    					HeapPage.createEmptyPageData()));
+		    		}
+		    	}
+		    	setRoom(pgNo, true);
     		}
     	}
-    	if (pgNo == numPages()) {
-    		HeapPage page = new HeapPage(new HeapPageId(tableId, pgNo), HeapPage.createEmptyPageData());
-    		
-    		page.insertTuple(t);
-    		list.add(page);
-    		writePage(page);
-    	}
-        return list;
     }
 
     // see DbFile.java for javadocs
@@ -151,9 +498,16 @@ public class HeapFile implements DbFile {
             TransactionAbortedException {
         // Done
     	BufferPool pool = Database.getBufferPool();
-    	HeapPage page = (HeapPage)pool.getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
+    	PageId pid = t.getRecordId().getPageId();
+    	HeapPage page = (HeapPage)pool.pinPage(tid, pid, Permissions.READ_WRITE);
     	
-    	page.deleteTuple(t);
+    	try {
+    		page.deleteTuple(t);
+    		page.markDirty(true, tid);	/* before it may be evicted */
+    		setRoom(pid.pageNumber(), true);
+    	} finally {
+    		pool.unpinPage(tid, pid);
+    	}
         return page;
     }
 
@@ -165,12 +519,32 @@ public class HeapFile implements DbFile {
         	private final BufferPool pool = Database.getBufferPool();
         	private final int tableId = getId();
         	private int pid = -1;
+        	private HeapPageId pinned = null;	/* the page child iterates over */
         	private Iterator<Tuple> child;
+        	private BufferRing ring;
+        	private int prefetched = 0;	/* pages below this were handed to read-ahead */
         	
+			/*
+			 * A scan reads every page, which it would end up holding S
+			 * locks on until the transaction completes anyway: one lock on
+			 * the table costs less, and also keeps out pages appended
+			 * meanwhile. Pages written later in the transaction make it SIX.
+			 */
 			@Override
 			public void open() throws DbException, TransactionAbortedException {
+				pool.lockTable(tid, tableId, Permissions.READ_ONLY);
 				pid = 0;
 				child = null;
+				ring = pool.newScanRing(numPages());
+				prefetched = 0;
+			}
+			/* Asks for the pages following pid to be read in the background. */
+			private void readAhead() {
+				int end = Math.min(numPages(), pid+1+pool.getReadAheadDepth(ring));
+				
+				for (prefetched=Math.max(prefetched, pid+1); prefetched<end; prefetched++) {
+					pool.prefetchPage(new HeapPageId(tableId, prefetched), ring);
+				}
 			}
 			@Override
 			public boolean hasNext() throws DbException,
@@ -178,13 +552,27 @@ public class HeapFile implements DbFile {
 				if (null != child && child.hasNext()) {
 					return true;
 				} else if (pid < 0 || pid >= numPages()) {
+					unpin();
 					return false;
 				} else {
-					child = ((HeapPage)pool.getPage(tid, new HeapPageId(tableId,pid++), 
-							Permissions.READ_ONLY)).iterator();
+					readAhead();
+					
+					HeapPageId next = new HeapPageId(tableId, pid++);
+					
+					unpin();
+					child = ((HeapPage)pool.pinPage(tid, next, 
+							Permissions.READ_ONLY, ring)).iterator();
+					pinned = next;
 					return hasNext();
 				}
 			}
+			/* Lets the page being iterated over go. */
+			private void unpin() {
+				if (null != pinned) {
+					pool.unpinPage(tid, pinned);
+					pinned = null;
+				}
+			}
 			@Override
 			public Tuple next() throws DbException,
 					TransactionAbortedException, NoSuchElementException {
@@ -197,13 +585,17 @@ public class HeapFile implements DbFile {
 			@Override
 			public void rewind() throws DbException,
 					TransactionAbortedException {
+				unpin();
 				pid = 0;
 				child = null;
+				prefetched = 0;
 			}
 			@Override
 			public void close() {
+				unpin();
 				pid = -1;
 				child = null;
+				ring = null;
 			}
         };
     }
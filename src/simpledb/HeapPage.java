@@ -2,10 +2,17 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Every read or change of the page data holds the latch of the page for
+ * its own duration, whatever transaction locks are held, so that readers
+ * taking no lock, like snapshots or the background writer, never see a
+ * page half changed.
  *
  * @see HeapFile
  * @see BufferPool
@@ -21,8 +28,29 @@ public class HeapPage implements Page {
     
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
+    
+    /*
+     * Whether the page was modified since setBeforeImage (protected by
+     * oldDataLock). Until then the page is its own before image, which is
+     * only copied aside on the first modification.
+     */
+    private boolean modified = false;
+    
+    /*
+     * For a page kept in a frame of an off-heap BufferPool, the page data
+     * and the before image (protected by oldDataLock); header and tuples
+     * are then null, and tuples are decoded on access. The data of a page
+     * of a mapped HeapFile is a read-only view of the mapping, copied to
+     * the heap on the first modification.
+     */
+    private volatile ByteBuffer frame = null;
+    private ByteBuffer beforeFrame = null;
 
-    private TransactionId tid;
+    private volatile TransactionId tid;	/* changed under the write latch */
+    private long modifications = 0;	/* number of changes, under the write latch */
+    
+    /* held for one read or change of the page data, unlike transaction locks */
+    private final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
     
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -63,6 +91,86 @@ public class HeapPage implements Page {
 
         setBeforeImage();
     }
+    
+    /**
+     * Create a HeapPage whose data stays in a frame of an off-heap
+     * BufferPool. Nothing is decoded up front: tuples are read from the
+     * frame on access and written to it on insertion.
+     * 
+     * @param frame the page data, which the page takes over
+     * @param beforeImage where the page keeps its before image
+     */
+    HeapPage(HeapPageId id, ByteBuffer frame, ByteBuffer beforeImage) {
+    	this.pid = id;
+    	this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+    	this.numSlots = getNumTuples();
+    	this.header = null;
+    	this.tuples = null;
+    	this.frame = frame;
+    	this.beforeFrame = beforeImage;
+    	setBeforeImage();
+    }
+    
+    /**
+     * Copies a page that was not modified since its before image was set,
+     * cheaply: the data of a page kept in a frame is copied as is, and the
+     * copy of a decoded page shares its tuples, which are never changed in
+     * place.
+     */
+    private HeapPage(HeapPage page) {
+    	this.pid = page.pid;
+    	this.td = page.td;
+    	this.numSlots = page.numSlots;
+    	
+    	ByteBuffer frame = page.frame;
+    	
+    	if (null != frame) {
+    		this.header = null;
+    		this.tuples = null;
+    		this.frame = ByteBuffer.wrap(copyOf(frame));
+    	} else {
+    		this.header = page.header.clone();
+    		this.tuples = page.tuples.clone();
+    	}
+    	setBeforeImage();
+    }
+    
+    /**
+     * Moves a page kept in an off-heap frame to the heap, so that it stays
+     * valid for whoever still holds it once the frame is reused.
+     */
+    void detach() {
+    	latch.writeLock().lock();
+    	try {
+    		synchronized(oldDataLock) {
+    			if (null != beforeFrame) {
+    				oldData = modified? copyOf(beforeFrame) : null;
+    				beforeFrame = null;
+    			}
+    		}
+    		if (null != frame && frame.isDirect() && !frame.isReadOnly()) {
+    			frame = ByteBuffer.wrap(copyOf(frame));
+    		}
+    	} finally {
+    		latch.writeLock().unlock();
+    	}
+    }
+    
+    /** @return whether the page is a view of the mapping of its file */
+    boolean isMapped() {
+    	ByteBuffer frame = this.frame;
+    	
+    	return null != frame && frame.isReadOnly();
+    }
+    
+    private static byte[] copyOf(ByteBuffer buffer) {
+    	byte[] data = new byte[BufferPool.getPageSize()];
+    	ByteBuffer src = buffer.duplicate();
+    	
+    	src.clear();
+    	src.get(data);
+    	return data;
+    }
 
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
@@ -85,8 +193,17 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
-            synchronized(oldDataLock) {
-                oldDataRef = oldData;
+            latch.readLock().lock();
+            try {
+            	synchronized(oldDataLock) {
+            		if (!modified) {
+            			return new HeapPage(this);
+            		} else {
+            			oldDataRef = null == beforeFrame? oldData : copyOf(beforeFrame);
+            		}
+            	}
+            } finally {
+            	latch.readLock().unlock();
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -99,10 +216,66 @@ public class HeapPage implements Page {
     
     public void setBeforeImage() {
         synchronized(oldDataLock) {
-        	oldData = getPageData().clone();
+        	modified = false;
+        	oldData = null;
+        }
+    }
+    
+    /**
+     * Copies the page aside as its before image, unless it was already
+     * modified since setBeforeImage. To be called before every change.
+     */
+    private void beforeModification() {
+        modifications++;
+        synchronized(oldDataLock) {
+        	if (modified) {
+        		return;
+        	}
+        	if (null == beforeFrame) {
+        		oldData = getPageData();
+        	} else {
+        		ByteBuffer dst = beforeFrame.duplicate(), src = frame.duplicate();
+        		
+        		dst.clear();
+        		src.clear();
+        		dst.put(src);
+        	}
+        	if (isMapped()) {
+        		frame = ByteBuffer.wrap(copyOf(frame));
+        	}
+        	modified = true;
         }
     }
 
+    /**
+     * Overwrites the whole page with a copy of it, keeping the before image
+     * like any other modification. Installs the writes an optimistic
+     * transaction made on its private copy of the page.
+     */
+    void setPageData(HeapPage copy) throws IOException {
+    	latch.writeLock().lock();
+    	try {
+    		beforeModification();
+    		
+    		ByteBuffer frame = this.frame;
+    		
+    		if (null != frame) {
+    			ByteBuffer dst = frame.duplicate();
+    			
+    			dst.clear();
+    			dst.put(copy.getPageData());
+    		} else {
+    			if (null != copy.frame) {
+    				copy = new HeapPage(pid, copy.getPageData());
+    			}
+    			System.arraycopy(copy.header, 0, header, 0, header.length);
+    			System.arraycopy(copy.tuples, 0, tuples, 0, tuples.length);
+    		}
+    	} finally {
+    		latch.writeLock().unlock();
+    	}
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -117,7 +290,7 @@ public class HeapPage implements Page {
     private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
         // if associated bit is not set, read forward to the next tuple, and
         // return null.
-        if (!isSlotUsed(slotId)) {
+        if (!isUsed(slotId)) {
             for (int i=0; i<td.getSize(); i++) {
                 try {
                     dis.readByte();
@@ -157,6 +330,21 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
+    	latch.readLock().lock();
+    	try {
+    		return pageData();
+    	} finally {
+    		latch.readLock().unlock();
+    	}
+    }
+    
+    private byte[] pageData() {
+        ByteBuffer frame = this.frame;
+        
+        if (null != frame) {
+        	return copyOf(frame);
+        }
+        
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -175,7 +363,7 @@ public class HeapPage implements Page {
         for (int i=0; i<tuples.length; i++) {
 
             // empty slot
-            if (!isSlotUsed(i)) {
+            if (!isUsed(i)) {
                 for (int j=0; j<td.getSize(); j++) {
                     try {
                         dos.writeByte(0);
@@ -231,6 +419,54 @@ public class HeapPage implements Page {
         return new byte[len]; //all 0
     }
 
+    /** @return the tuple in the used slot i */
+    private Tuple getTuple(int i) {
+    	if (null != tuples) {
+    		return tuples[i];
+    	}
+    	
+    	ByteBuffer data = slot(i);
+    	byte[] bytes = new byte[td.getSize()];
+    	
+    	data.get(bytes);
+    	return readNextTuple(new DataInputStream(new ByteArrayInputStream(bytes)), i);
+    }
+    
+    /** Stores t in slot i, or clears the slot if t is null. */
+    private void setTuple(int i, Tuple t) {
+    	if (null != tuples) {
+    		tuples[i] = t;
+    		return;
+    	}
+    	
+    	ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+    	
+    	if (null == t) {
+    		baos.write(new byte[td.getSize()], 0, td.getSize());
+    	} else {
+    		DataOutputStream dos = new DataOutputStream(baos);
+    		
+    		try {
+	    		for (int j=0; j<td.numFields(); j++) {
+	    			t.getField(j).serialize(dos);
+	    		}
+	    		dos.flush();
+    		} catch (IOException e) {
+    			// this really shouldn't happen
+    			e.printStackTrace();
+    		}
+    	}
+    	slot(i).put(baos.toByteArray());
+    }
+    
+    /** @return a view of the frame positioned at slot i */
+    private ByteBuffer slot(int i) {
+    	ByteBuffer data = frame.duplicate();
+    	
+    	data.position(getHeaderSize()+i*td.getSize());
+    	return data;
+    }
+
     /**
      * Delete the specified tuple from the page;  the tuple should be updated to reflect
      *   that it is no longer stored on any page.
@@ -244,13 +480,19 @@ public class HeapPage implements Page {
     		int tupleno = t.getRecordId().tupleno();
     		
     		if (tupleno >= 0 && tupleno < numSlots) {
-    			if (isSlotUsed(tupleno)) {
-    				tuples[tupleno] = null;
-	    			markSlotUsed(tupleno, false);
-	    			return;
-	    		} else {
-	    			throw new DbException("deletion on empty slot");
-	    		}
+    			latch.writeLock().lock();
+    			try {
+    				if (isUsed(tupleno)) {
+    					beforeModification();
+    					setTuple(tupleno, null);
+    					markSlotUsed(tupleno, false);
+    					return;
+    				} else {
+    					throw new DbException("deletion on empty slot");
+    				}
+    			} finally {
+    				latch.writeLock().unlock();
+    			}
     		}
     	}
     	throw new DbException("tuple not on the page");
@@ -265,13 +507,19 @@ public class HeapPage implements Page {
      */
     public void insertTuple(Tuple t) throws DbException {
         // Done
-    	for (int i=0; i<numSlots; i++) {
-    		if (!isSlotUsed(i)) {
-    			t.setRecordId(new RecordId(pid, i));
-    			tuples[i] = t;
-    			markSlotUsed(i, true);
-    			return;
+    	latch.writeLock().lock();
+    	try {
+    		for (int i=0; i<numSlots; i++) {
+    			if (!isUsed(i)) {
+    				beforeModification();
+    				t.setRecordId(new RecordId(pid, i));
+    				setTuple(i, t);
+    				markSlotUsed(i, true);
+    				return;
+    			}
     		}
+    	} finally {
+    		latch.writeLock().unlock();
     	}
     	throw new DbException("insertion on full page");
     }
@@ -282,7 +530,45 @@ public class HeapPage implements Page {
      */
     public void markDirty(boolean dirty, TransactionId tid) {
         // Done
-    	this.tid = dirty? tid : null;
+    	latch.writeLock().lock();
+    	try {
+    		this.tid = dirty? tid : null;
+    	} finally {
+    		latch.writeLock().unlock();
+    	}
+    }
+
+    /**
+     * Copies the page as it is now, dirty like the page, to be written out
+     * while the page may keep changing. Once the copy is on disk,
+     * markWritten(copy) marks the page clean, unless it changed since.
+     */
+    HeapPage writeImage() {
+    	latch.readLock().lock();
+    	try {
+    		HeapPage image = new HeapPage(pid, ByteBuffer.wrap(pageData()), null);
+    		
+    		image.tid = tid;
+    		image.modifications = modifications;
+    		return image;
+    	} finally {
+    		latch.readLock().unlock();
+    	}
+    }
+    
+    /**
+     * Marks the page clean now that the image taken by writeImage() is on
+     * disk, unless the page was changed after the image was taken.
+     */
+    void markWritten(HeapPage image) {
+    	latch.writeLock().lock();
+    	try {
+    		if (image.modifications == modifications) {
+    			tid = null;
+    		}
+    	} finally {
+    		latch.writeLock().unlock();
+    	}
     }
 
     /**
@@ -300,10 +586,15 @@ public class HeapPage implements Page {
         // Done
     	int num = 0;
     	
-    	for (int i=0; i<numSlots; i++) {
-    		if (!isSlotUsed(i)) {
-    			num++;
+    	latch.readLock().lock();
+    	try {
+    		for (int i=0; i<numSlots; i++) {
+    			if (!isUsed(i)) {
+    				num++;
+    			}
     		}
+    	} finally {
+    		latch.readLock().unlock();
     	}
         return num;
     }
@@ -313,7 +604,19 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
     	// Done
-        return 0 != (header[i>>3]&(1<<(i&7)));
+    	latch.readLock().lock();
+    	try {
+    		return isUsed(i);
+    	} finally {
+    		latch.readLock().unlock();
+    	}
+    }
+    
+    /** isSlotUsed, for callers holding the latch. */
+    private boolean isUsed(int i) {
+    	byte bits = null == header? frame.get(i>>3) : header[i>>3];
+    	
+        return 0 != (bits&(1<<(i&7)));
     }
 
     /**
@@ -321,10 +624,17 @@ public class HeapPage implements Page {
      */
     private void markSlotUsed(int i, boolean value) {
     	 // Done
+    	byte bits = null == header? frame.get(i>>3) : header[i>>3];
+    	
     	if (value) {
-    		header[i>>3] |= (1<<(i&7));
+    		bits |= (1<<(i&7));
+    	} else {
+    		bits &= ~(1<<(i&7));
+    	}
+    	if (null == header) {
+    		frame.put(i>>3, bits);
     	} else {
-    		header[i>>3] &= ~(1<<(i&7));
+    		header[i>>3] = bits;
     	}
     }
 
@@ -339,17 +649,27 @@ public class HeapPage implements Page {
         	
 			@Override
 			public boolean hasNext() {
-				while (idx+1<numSlots && !isSlotUsed(idx+1)) {
-					idx++;
+				latch.readLock().lock();
+				try {
+					while (idx+1<numSlots && !isUsed(idx+1)) {
+						idx++;
+					}
+					return idx+1<numSlots;
+				} finally {
+					latch.readLock().unlock();
 				}
-				return idx+1<numSlots;
 			}
 			@Override
 			public Tuple next() {
-				if (hasNext()) {
-					return tuples[++idx];
-				} else {
-					throw new NoSuchElementException();
+				latch.readLock().lock();
+				try {
+					if (hasNext()) {
+						return getTuple(++idx);
+					} else {
+						throw new NoSuchElementException();
+					}
+				} finally {
+					latch.readLock().unlock();
 				}
 			}
 			@Override
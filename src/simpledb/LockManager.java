@@ -2,164 +2,796 @@
 
 package simpledb;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
+import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.Vector;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * The locks of the transactions on a hierarchy of resources: tables, keyed
+ * by their id, and the PageIds of their pages. Tuples are not locked apart:
+ * the log, the before images and the dirtier of a page are all kept per
+ * page, so two writers cannot share a page. A lock in some mode is taken
+ * after the matching intention lock on every ancestor, and a lock in S, SIX
+ * or X mode implicitly covers the descendants of its resource. A
+ * transaction holding more than a threshold of locks below one resource
+ * trades them for a single lock on it, when it can do so without waiting.
+ * <p>
+ * Locks are keyed by resource so that they outlive the eviction of pages,
+ * and each transaction keeps the set of what it has locked, so that
+ * releasing its locks costs as much as it holds rather than the size of
+ * the pool.
+ * <p>
+ * Requests that cannot be granted wait in a FIFO queue per lock and are
+ * woken up one by one as they are granted, rather than all at once.
+ * Deadlocks are detected on a waits-for graph, kept up to date as locks
+ * change hands: a transaction about to wait for one that, transitively,
+ * waits for it is aborted right away. Alternatively, a DeadlockPolicy may
+ * prevent them by the ages of the transactions.
+ * <p>
+ * What the locks cost is counted in the LockStats of the manager.
+ */
 class LockManager {
 	
-	private final Object[] mutexes;
-	private final List<Set<TransactionId>> readLockHolders;
-	private final List<TransactionId> writeLockHolders;
-	private final int[] writers;	/* number of writers waiting or working */
-	private final Random rand = new Random();
-	private final int MIN_TIME = 100, MAX_TIME = 1000;
+	/** Default number of locks below a resource that are escalated to it. */
+	static final int DEFAULT_ESCALATION_THRESHOLD = 256;
 	
-	public LockManager(int numPages) {
-		mutexes = new Object[numPages];
-		readLockHolders = new Vector<Set<TransactionId>>(numPages);
-		writeLockHolders = new Vector<TransactionId>(numPages);
-		for (int i=0; i<numPages; i++) {
-			mutexes[i] = new Object();
-			readLockHolders.add(new HashSet<TransactionId>());
-			writeLockHolders.add(null);
+	/** A transaction waiting in the queue of a lock, which is also its monitor. */
+	private static class Request {
+		final TransactionId tid;
+		final Object resource;
+		final LockMode mode;	/* wanted, covering the mode held */
+		final LockMode held;	/* before the request, null unless an upgrade */
+		final long since = System.nanoTime();
+		boolean granted = false;
+		boolean aborted = false;	/* wounded while waiting */
+		
+		Request(TransactionId tid, Object resource, LockMode mode, LockMode held) {
+			this.tid = tid;
+			this.resource = resource;
+			this.mode = mode;
+			this.held = held;
+		}
+		
+		boolean isUpgrade() {
+			return null != held;
 		}
-		writers = new int[numPages];
 	}
 	
-	private boolean holdsReadLock(TransactionId tid, int idx) {
-		synchronized(mutexes[idx]) {
-			return readLockHolders.get(idx).contains(tid);
+	/**
+	 * The state of the lock on one resource, which is also its monitor.
+	 * Requests that cannot be granted right away wait in a queue and are
+	 * granted in its order, upgrades ahead of new requests: the compatible
+	 * requests at its head go together, and none goes before those ahead of
+	 * it, so that a stream of readers cannot starve a writer.
+	 */
+	private static class Lock {
+		final Map<TransactionId,LockMode> holders =
+				new HashMap<TransactionId,LockMode>();
+		final LinkedList<Request> queue = new LinkedList<Request>();
+		boolean removed = false;	/* from the lock table, once unused */
+		
+		boolean isUnused() {
+			return holders.isEmpty() && queue.isEmpty();
+		}
+		
+		/** @return true if tid may hold the lock in mode along with the other holders */
+		boolean isCompatible(TransactionId tid, LockMode mode) {
+			for (Map.Entry<TransactionId,LockMode> entry : holders.entrySet()) {
+				if (!entry.getKey().equals(tid) && !mode.isCompatible(entry.getValue())) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/** @return true if the request of tid for mode need not queue */
+		boolean canGrant(TransactionId tid, LockMode mode) {
+			if (!isCompatible(tid, mode)) {
+				return false;
+			} else if (holders.containsKey(tid)) {
+				return queue.isEmpty() || !queue.getFirst().isUpgrade();
+			} else {
+				return queue.isEmpty();
+			}
+		}
+		
+		/** Queues the request behind the upgrades if it is one, last otherwise. */
+		void enqueue(Request request) {
+			if (request.isUpgrade()) {
+				ListIterator<Request> it = queue.listIterator();
+				
+				while (it.hasNext()) {
+					if (!it.next().isUpgrade()) {
+						it.previous();
+						break;
+					}
+				}
+				it.add(request);
+			} else {
+				queue.addLast(request);
+			}
+		}
+		
+		/**
+		 * Grants the requests at the head of the queue, as long as they are
+		 * compatible with the holders.
+		 *
+		 * @return the requests granted
+		 */
+		List<Request> grant() {
+			List<Request> granted = new ArrayList<Request>();
+			
+			while (!queue.isEmpty()
+					&& isCompatible(queue.getFirst().tid, queue.getFirst().mode)) {
+				Request request = queue.removeFirst();
+				
+				holders.put(request.tid, request.mode);
+				granted.add(request);
+			}
+			return granted;
+		}
+		
+		/**
+		 * @return the transactions the request waits for: the holders it
+		 *     conflicts with, and the requests ahead of it
+		 */
+		Set<TransactionId> blockers(Request request) {
+			Set<TransactionId> blockers = new HashSet<TransactionId>();
+			
+			for (Map.Entry<TransactionId,LockMode> entry : holders.entrySet()) {
+				if (!request.mode.isCompatible(entry.getValue())) {
+					blockers.add(entry.getKey());
+				}
+			}
+			for (Request ahead : queue) {
+				if (ahead == request) {
+					break;
+				}
+				blockers.add(ahead.tid);
+			}
+			blockers.remove(request.tid);
+			return blockers;
+		}
+	}
+	
+	/** The locks of one transaction, which is also their monitor. */
+	private static class LockSet {
+		/* the locks held explicitly, with their modes */
+		final Map<Object,LockMode> held = new HashMap<Object,LockMode>();
+		/* the pages locked, explicitly or through a lock on their table */
+		final Set<PageId> pages = new HashSet<PageId>();
+		/* the number of locks held explicitly right below each resource */
+		final Map<Object,Integer> children = new HashMap<Object,Integer>();
+		
+		void addChild(Object parent, int delta) {
+			Integer n = children.get(parent);
+			int count = (null == n? 0 : n) + delta;
+			
+			if (0 == count) {
+				children.remove(parent);
+			} else {
+				children.put(parent, count);
+			}
+		}
+		
+		int numChildren(Object parent) {
+			Integer n = children.get(parent);
+			
+			return null == n? 0 : n;
+		}
+	}
+	
+	private final ConcurrentMap<Object,Lock> locks;
+	private final ConcurrentMap<TransactionId,LockSet> lockSets;
+	/* the waits-for graph: the transactions each waiting one waits for */
+	private final Map<TransactionId,Set<TransactionId>> waitsFor;
+	private final LockStats stats;
+	private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+	private volatile DeadlockPolicy policy = DeadlockPolicy.DETECT;
+	/* the requests queued, by transaction, for wound-wait to abort them */
+	private final ConcurrentMap<TransactionId,Request> queued;
+	/* the transactions to abort on their next request, to whether it was counted */
+	private final ConcurrentMap<TransactionId,Boolean> wounded;
+	
+	public LockManager() {
+		locks = new ConcurrentHashMap<Object,Lock>();
+		lockSets = new ConcurrentHashMap<TransactionId,LockSet>();
+		waitsFor = new HashMap<TransactionId,Set<TransactionId>>();
+		queued = new ConcurrentHashMap<TransactionId,Request>();
+		wounded = new ConcurrentHashMap<TransactionId,Boolean>();
+		stats = new LockStats(this);
+	}
+	
+	/**
+	 * Sets how deadlocks are dealt with from now on. The waits-for graph is
+	 * kept under every policy: with prevention, a cycle can still form when
+	 * an upgrade is queued ahead of older requests, and is then detected.
+	 */
+	public void setDeadlockPolicy(DeadlockPolicy policy) {
+		this.policy = policy;
+	}
+	
+	/**
+	 * @return the resource one level up the hierarchy: the table of a page,
+	 *     or null for a table
+	 */
+	static Object parentOf(Object resource) {
+		if (resource instanceof PageId) {
+			return ((PageId) resource).getTableId();
+		} else {
+			return null;
 		}
 	}
 	
-	private boolean holdsWriteLock(TransactionId tid, int idx) {
-		synchronized(mutexes[idx]) {
-			return tid.equals(writeLockHolders.get(idx));
+	/**
+	 * Sets how many locks a transaction may hold right below one resource
+	 * before they are escalated to a lock on the resource itself.
+	 */
+	public void setEscalationThreshold(int threshold) {
+		if (threshold < 1) {
+			throw new IllegalArgumentException("threshold "+threshold);
 		}
+		escalationThreshold = threshold;
 	}
 	
-	public boolean isHolding(TransactionId tid, int idx) {
-		return holdsWriteLock(tid, idx) || holdsReadLock(tid, idx);
+	/** @return the lock on the resource, created if there is none */
+	private Lock lockOf(Object resource) {
+		Lock lock = locks.get(resource);
+		
+		if (null == lock) {
+			Lock fresh = new Lock();
+			
+			lock = locks.putIfAbsent(resource, fresh);
+			if (null == lock) {
+				lock = fresh;
+			}
+		}
+		return lock;
 	}
 	
-	private void acquireReadLock(TransactionId tid, int idx)
-			throws InterruptedException {
-		// System.out.println(tid.myid+" wants to read "+idx);
-		if (!isHolding(tid, idx)) {
-			synchronized(mutexes[idx]) {
-				final Thread thread = Thread.currentThread();
-				final Timer timer = new Timer(true);
+	/** Drops the lock from the table if nobody holds or awaits it. */
+	private void removeIfUnused(Object resource, Lock lock) {
+		if (lock.isUnused()) {
+			lock.removed = true;
+			locks.remove(resource, lock);
+		}
+	}
+	
+	private LockSet lockSetOf(TransactionId tid) {
+		LockSet lockSet = lockSets.get(tid);
+		
+		if (null == lockSet) {
+			lockSets.putIfAbsent(tid, new LockSet());
+			lockSet = lockSets.get(tid);
+		}
+		return lockSet;
+	}
+	
+	/**
+	 * @return true if the transaction holds the resource in a mode covering
+	 *     mode, explicitly or through a lock on an ancestor
+	 */
+	private boolean covers(TransactionId tid, Object resource, LockMode mode) {
+		LockSet lockSet = lockSets.get(tid);
+		
+		if (null == lockSet) {
+			return false;
+		}
+		synchronized (lockSet) {
+			LockMode held = lockSet.held.get(resource);
+			
+			if (null != held && held.covers(mode)) {
+				return true;
+			}
+			for (Object r = parentOf(resource); null != r; r = parentOf(r)) {
+				held = lockSet.held.get(r);
+				if (null != held && null != held.implied()
+						&& held.implied().covers(mode)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	/** @return true if the transaction may read the page under its locks */
+	public boolean isHolding(TransactionId tid, PageId pid) {
+		return covers(tid, pid, LockMode.S);
+	}
+	
+	/** @return the mode the transaction holds the resource in explicitly, or null */
+	public LockMode getMode(TransactionId tid, Object resource) {
+		LockSet lockSet = lockSets.get(tid);
+		
+		if (null == lockSet) {
+			return null;
+		}
+		synchronized (lockSet) {
+			return lockSet.held.get(resource);
+		}
+	}
+	
+	/**
+	 * @return a copy of the set of pages the transaction holds a lock on,
+	 *     explicitly or through a lock on their table
+	 */
+	public Set<PageId> getLockedPages(TransactionId tid) {
+		LockSet lockSet = lockSets.get(tid);
+		
+		if (null == lockSet) {
+			return Collections.<PageId>emptySet();
+		}
+		synchronized (lockSet) {
+			return new HashSet<PageId>(lockSet.pages);
+		}
+	}
+	
+	/** @return the number of deadlocks detected, each aborting a transaction */
+	public long getDeadlocks() {
+		return stats.getDeadlocks();
+	}
+	
+	/**
+	 * @return the number of transactions aborted by the prevention policy,
+	 *     having died, or been wounded and told so
+	 */
+	public long getPreventiveAborts() {
+		return stats.getPreventiveAborts();
+	}
+	
+	/** @return the number of times locks were escalated to their parent */
+	public long getEscalations() {
+		return stats.getEscalations();
+	}
+	
+	/** @return the statistics of the locks granted and waited for */
+	public LockStats getStats() {
+		return stats;
+	}
+	
+	/**
+	 * @return a line for each transaction waiting for a lock, longest
+	 *     waiting first: the lock, for how long, and the transactions it
+	 *     waits for
+	 */
+	List<String> getWaiters() {
+		List<Request> requests = new ArrayList<Request>(queued.values());
+		List<String> lines = new ArrayList<String>();
+		long now = System.nanoTime();
+		
+		Collections.sort(requests, new Comparator<Request>() {
+			@Override public int compare(Request a, Request b) {
+				return Long.compare(a.since, b.since);
+			}
+		});
+		for (Request request : requests) {
+			List<Long> blockers = new ArrayList<Long>();
+			
+			synchronized (waitsFor) {
+				Set<TransactionId> tids = waitsFor.get(request.tid);
 				
-				timer.schedule(new TimerTask() {
-					@Override public void run() {
-						thread.interrupt();
+				if (null != tids) {
+					for (TransactionId tid : tids) {
+						blockers.add(tid.getId());
 					}
-				}, MIN_TIME+rand.nextInt(MAX_TIME-MIN_TIME));
-				while (0 != writers[idx]) {
-					mutexes[idx].wait();
 				}
-				readLockHolders.get(idx).add(tid);
-				timer.cancel();
 			}
+			lines.add("transaction "+request.tid.getId()+" waits for "+request.mode+" on "
+					+LockStats.nameOf(request.resource)+" for "+(now-request.since)/1000
+					+" us, behind "+blockers);
 		}
-		// System.out.println(tid.myid+" gets to read "+idx);
+		return lines;
 	}
 	
-	private boolean releaseReadLock(TransactionId tid, int idx) {
-		if (!holdsReadLock(tid, idx)) {
-			return false;
-		} else {
-			synchronized(mutexes[idx]) {
-				readLockHolders.get(idx).remove(tid);
-				if (readLockHolders.get(idx).isEmpty()) {
-					mutexes[idx].notifyAll();
+	/**
+	 * Brings the edges of the waits-for graph leaving the transactions
+	 * queued for the lock up to date with its holders and queue. Called with
+	 * the monitor of the lock held, after every change to the lock, so that
+	 * the graph never shows a wait that is over.
+	 */
+	private void updateWaits(Lock lock) {
+		synchronized (waitsFor) {
+			for (Request request : lock.queue) {
+				waitsFor.put(request.tid, lock.blockers(request));
+			}
+		}
+	}
+	
+	private void clearWaits(TransactionId tid) {
+		synchronized (waitsFor) {
+			waitsFor.remove(tid);
+		}
+	}
+	
+	/** @return true if tid waits, transitively, for itself */
+	private boolean isDeadlocked(TransactionId tid) {
+		synchronized (waitsFor) {
+			Set<TransactionId> blockers = waitsFor.get(tid);
+			
+			return null != blockers && reaches(blockers, tid);
+		}
+	}
+	
+	/** @return true if target is reachable from the sources in the waits-for graph */
+	private boolean reaches(Set<TransactionId> sources, TransactionId target) {
+		Set<TransactionId> visited = new HashSet<TransactionId>();
+		Deque<TransactionId> stack = new ArrayDeque<TransactionId>(sources);
+		
+		while (!stack.isEmpty()) {
+			TransactionId tid = stack.pop();
+			
+			if (tid.equals(target)) {
+				return true;
+			}
+			if (visited.add(tid)) {
+				Set<TransactionId> next = waitsFor.get(tid);
+				
+				if (null != next) {
+					stack.addAll(next);
 				}
 			}
-			// System.out.println(tid.myid+" ceases to read "+idx);
-			return true;
 		}
+		return false;
 	}
 	
-	private boolean hasOtherReader(TransactionId tid, int idx) {
-		synchronized(mutexes[idx]) {
-			for (TransactionId otherTid : readLockHolders.get(idx)) {
-				if (!otherTid.equals(tid)) {
-					return true;
+	/** @return true if a is older than b, having been started first */
+	private static boolean isOlder(TransactionId a, TransactionId b) {
+		return a.getId() < b.getId();
+	}
+	
+	/**
+	 * Applies the prevention policy to a request of tid about to wait for
+	 * the blockers: under wound-wait the younger blockers are wounded.
+	 *
+	 * @return false if tid has to die instead, under wait-die
+	 */
+	private boolean mayWait(TransactionId tid, Set<TransactionId> blockers) {
+		for (TransactionId blocker : blockers) {
+			if (!isOlder(tid, blocker)) {
+				if (DeadlockPolicy.WAIT_DIE == policy) {
+					return false;
 				}
+			} else if (DeadlockPolicy.WOUND_WAIT == policy) {
+				wound(blocker);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Has the transaction abort on its next request, for a lock it holds
+	 * or not, or right away if it is waiting for one. The locks it holds
+	 * are released once it completes.
+	 */
+	private void wound(TransactionId tid) {
+		if (null == wounded.putIfAbsent(tid, false)) {
+			Request request = queued.get(tid);
+			
+			if (null != request) {
+				synchronized (request) {
+					request.aborted = true;
+					request.notify();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Aborts the transaction if it was wounded. The abort is counted the
+	 * first time only, when the transaction learns about it.
+	 *
+	 * @throws TransactionAbortedException if the transaction was wounded
+	 */
+	public void checkWounded(TransactionId tid) throws TransactionAbortedException {
+		if (wounded.containsKey(tid)) {
+			if (wounded.replace(tid, false, true)) {
+				stats.preventiveAborts.incrementAndGet();
+			}
+			throw new TransactionAbortedException();
+		}
+	}
+	
+	/**
+	 * Called with the monitor of the lock held after its holders or queue
+	 * changed: wakes up the requests this grants, and drops the lock from
+	 * the table if nobody holds or awaits it any more. Only the requests
+	 * granted are woken up.
+	 */
+	private void lockChanged(Object resource, Lock lock) {
+		for (Request request : lock.grant()) {
+			clearWaits(request.tid);
+			synchronized (request) {
+				request.granted = true;
+				request.notify();
 			}
-			return false;
 		}
+		updateWaits(lock);
+		removeIfUnused(resource, lock);
 	}
 	
-	private void acquireWriteLock(TransactionId tid, int idx) 
-			throws InterruptedException {
-		// System.out.println(tid.myid+" wants to write "+idx);
-		if (!holdsWriteLock(tid, idx)) {
-			synchronized(mutexes[idx]) {
-				final Thread thread = Thread.currentThread();
-				final Timer timer = new Timer(true);
+	/**
+	 * Blocks until tid holds the lock on the resource in mode, or in a mode
+	 * covering both it and the one it held. The graph is checked when the
+	 * request is queued, and a request that would close a cycle is refused:
+	 * the requesting transaction is the victim. Queueing an upgrade ahead of
+	 * others only adds waits for it, so any cycle passes through it too.
+	 *
+	 * @return the mode granted
+	 */
+	private LockMode acquireLock(TransactionId tid, Object resource, LockMode mode)
+			throws TransactionAbortedException {
+		Lock lock;
+		Request request;
+		
+		for (;;) {
+			lock = lockOf(resource);
+			synchronized(lock) {
+				if (lock.removed) {
+					continue;
+				}
+				
+				LockMode held = lock.holders.get(tid);
+				LockMode wanted = null == held? mode : held.supremum(mode);
+				
+				if (lock.canGrant(tid, wanted)) {
+					lock.holders.put(tid, wanted);
+					updateWaits(lock);
+					stats.acquired(resource, null != held && held != wanted);
+					return wanted;
+				}
+				request = new Request(tid, resource, wanted, held);
+				lock.enqueue(request);
+				updateWaits(lock);
 				
-				writers[idx]++;
-				timer.schedule(new TimerTask() {
-					@Override public void run() {
-						thread.interrupt();
+				boolean dies = DeadlockPolicy.DETECT != policy
+						&& !mayWait(tid, lock.blockers(request));
+				
+				if (dies || isDeadlocked(tid)) {
+					lock.queue.remove(request);
+					clearWaits(tid);
+					lockChanged(resource, lock);
+					(dies? stats.preventiveAborts : stats.deadlocks).incrementAndGet();
+					throw new TransactionAbortedException();
+				}
+				queued.put(tid, request);
+				break;
+			}
+		}
+		
+		boolean granted = false;
+		
+		try {
+			synchronized (request) {
+				/* wounded before it could be found in the queue */
+				if (wounded.containsKey(tid)) {
+					request.aborted = true;
+				}
+				while (!request.granted && !request.aborted) {
+					request.wait();
+				}
+				granted = request.granted;
+			}
+			if (!granted) {
+				/* only wounds abort a waiting request */
+				checkWounded(tid);
+				throw new TransactionAbortedException();
+			}
+			stats.acquired(resource, request.isUpgrade());
+			return request.mode;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TransactionAbortedException();
+		} finally {
+			queued.remove(tid, request);
+			stats.waited(resource, System.nanoTime()-request.since);
+			if (!granted) {
+				synchronized (lock) {
+					if (!lock.queue.remove(request)) {
+						/* granted meanwhile: back to what was held before */
+						if (request.isUpgrade()) {
+							lock.holders.put(tid, request.held);
+						} else {
+							lock.holders.remove(tid);
+						}
 					}
-				}, MIN_TIME+rand.nextInt(MAX_TIME-MIN_TIME));
-				while (hasOtherReader(tid, idx) || null != writeLockHolders.get(idx)) {
-					mutexes[idx].wait();
+					clearWaits(tid);
+					lockChanged(resource, lock);
 				}
-				readLockHolders.get(idx).remove(tid);
-				writeLockHolders.set(idx, tid);
-				timer.cancel();
 			}
 		}
-		// System.out.println(tid.myid+" gets to write "+idx);
 	}
 	
-	private boolean releaseWriteLock(TransactionId tid, int idx) {
-		if (!holdsWriteLock(tid, idx)) {
+	/**
+	 * Grants tid the lock on the resource in mode, combined with the one it
+	 * held, if that needs no wait.
+	 *
+	 * @return the mode granted, or null if the lock is not available
+	 */
+	private LockMode tryAcquireLock(TransactionId tid, Object resource, LockMode mode) {
+		for (;;) {
+			Lock lock = lockOf(resource);
+			
+			synchronized(lock) {
+				if (lock.removed) {
+					continue;
+				}
+				
+				LockMode held = lock.holders.get(tid);
+				LockMode wanted = null == held? mode : held.supremum(mode);
+				
+				if (!lock.canGrant(tid, wanted)) {
+					removeIfUnused(resource, lock);
+					return null;
+				}
+				lock.holders.put(tid, wanted);
+				updateWaits(lock);
+				return wanted;
+			}
+		}
+	}
+	
+	private boolean releaseLock(TransactionId tid, Object resource) {
+		Lock lock = locks.get(resource);
+		
+		if (null == lock) {
 			return false;
-		} else {
-			synchronized(mutexes[idx]) {
-				writeLockHolders.set(idx, null);
-				writers[idx]--;
-				mutexes[idx].notifyAll();
+		}
+		synchronized(lock) {
+			if (null == lock.holders.remove(tid)) {
+				return false;
 			}
-			// System.out.println(tid.myid+" ceases to write "+idx);
+			lockChanged(resource, lock);
 			return true;
 		}
 	}
 	
-	public void acquire(TransactionId tid, int idx, Permissions perm) 
-			throws InterruptedException {
-		try {
-			if (perm.equals(Permissions.READ_ONLY)) {
-				acquireReadLock(tid, idx);
-			} else {
-				acquireWriteLock(tid, idx);
+	/**
+	 * Blocks until the transaction holds a lock on the page good for perm,
+	 * with the matching intention lock on its table.
+	 *
+	 * @throws TransactionAbortedException if waiting would deadlock the
+	 *     transaction, it was wounded, or it was interrupted; its locks are
+	 *     kept until it completes, so that its dirty pages can be discarded
+	 *     first
+	 */
+	public void acquire(TransactionId tid, PageId pid, Permissions perm)
+			throws TransactionAbortedException {
+		acquire(tid, pid, LockMode.of(perm));
+	}
+	
+	/**
+	 * Blocks until the transaction holds the resource, a table id or a
+	 * PageId, in a mode covering mode, taking the matching intention
+	 * locks on its ancestors first.
+	 *
+	 * @throws TransactionAbortedException as for pages
+	 */
+	public void acquire(TransactionId tid, Object resource, LockMode mode)
+			throws TransactionAbortedException {
+		checkWounded(tid);
+		if (!covers(tid, resource, mode)) {
+			Object parent = parentOf(resource);
+			
+			if (null != parent) {
+				acquire(tid, parent, mode.intention());
 			}
-			return;
-		} catch (InterruptedException e) {
-			for (int j=0; j<mutexes.length; j++) {
-				release(tid, j);
+			/* the parent may have been escalated meanwhile */
+			if (!covers(tid, resource, mode)) {
+				LockMode granted = acquireLock(tid, resource, mode);
+				LockSet lockSet = lockSetOf(tid);
+				
+				synchronized (lockSet) {
+					if (null == lockSet.held.put(resource, granted) && null != parent) {
+						lockSet.addChild(parent, 1);
+					}
+				}
+				if (null != parent) {
+					escalateIfNeeded(tid, parent);
+				}
 			}
-			if (!perm.equals(Permissions.READ_ONLY)) {
-				synchronized(mutexes[idx]) {
-					writers[idx]--;
+		}
+		if (resource instanceof PageId) {
+			LockSet lockSet = lockSetOf(tid);
+			
+			synchronized (lockSet) {
+				lockSet.pages.add((PageId) resource);
+			}
+		}
+	}
+	
+	/**
+	 * Trades the locks the transaction holds below the resource for one lock
+	 * on it, X if any of them is for writing and S otherwise, once there are
+	 * more than the threshold right below it and the lock is available
+	 * without waiting.
+	 */
+	private void escalateIfNeeded(TransactionId tid, Object resource) {
+		LockSet lockSet = lockSetOf(tid);
+		List<Object> descendants = new ArrayList<Object>();
+		LockMode mode = LockMode.S;
+		
+		synchronized (lockSet) {
+			int n = lockSet.numChildren(resource) - escalationThreshold;
+			
+			/* once refused, retry every threshold more locks */
+			if (n <= 0 || 1 != n % escalationThreshold && 1 != escalationThreshold) {
+				return;
+			}
+			for (Map.Entry<Object,LockMode> entry : lockSet.held.entrySet()) {
+				for (Object r = parentOf(entry.getKey()); null != r; r = parentOf(r)) {
+					if (r.equals(resource)) {
+						descendants.add(entry.getKey());
+						if (!entry.getValue().isShared()) {
+							mode = LockMode.X;
+						}
+						break;
+					}
 				}
 			}
-			throw new InterruptedException("DEADLOCK DETECTED");
+		}
+		
+		LockMode granted = tryAcquireLock(tid, resource, mode);
+		
+		if (null == granted) {
+			return;
+		}
+		synchronized (lockSet) {
+			lockSet.held.put(resource, granted);
+			for (Object descendant : descendants) {
+				lockSet.held.remove(descendant);
+				lockSet.addChild(parentOf(descendant), -1);
+				releaseLock(tid, descendant);
+			}
+		}
+		stats.escalations.incrementAndGet();
+	}
+	
+	/**
+	 * Releases the transaction's lock on the page, or just forgets about the
+	 * page if it is locked through its table.
+	 *
+	 * @return false if the page was not locked
+	 */
+	public boolean release(TransactionId tid, PageId pid) {
+		LockSet lockSet = lockSets.get(tid);
+		
+		if (null == lockSet) {
+			return false;
+		}
+		synchronized (lockSet) {
+			if (null != lockSet.held.remove(pid)) {
+				lockSet.addChild(parentOf(pid), -1);
+				lockSet.pages.remove(pid);
+				return releaseLock(tid, pid);
+			}
+			return lockSet.pages.remove(pid);
 		}
 	}
 	
-	public boolean release(TransactionId tid, int idx) {
-		return releaseWriteLock(tid, idx) || releaseReadLock(tid, idx);
+	/** Releases every lock the transaction holds. */
+	public void releaseAll(TransactionId tid) {
+		LockSet lockSet = lockSets.remove(tid);
+		
+		wounded.remove(tid);
+		
+		if (null != lockSet) {
+			synchronized (lockSet) {
+				for (Object resource : lockSet.held.keySet()) {
+					releaseLock(tid, resource);
+				}
+			}
+		}
 	}
 	
 }
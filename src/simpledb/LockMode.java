@@ -0,0 +1,81 @@
+package simpledb;
+
+/**
+ * The modes of the hierarchical locks a LockManager grants on tables and
+ * pages. An intention mode on a table announces locks of the matching kind
+ * on its pages: IS before S locks, IX before X locks, and SIX reads the
+ * whole table while writing some of its pages.
+ */
+public enum LockMode {
+	IS, IX, S, SIX, X;
+	
+	private static final boolean[][] COMPATIBLE = {
+		/*          IS     IX     S      SIX    X     */
+		/* IS  */ { true,  true,  true,  true,  false },
+		/* IX  */ { true,  true,  false, false, false },
+		/* S   */ { true,  false, true,  false, false },
+		/* SIX */ { true,  false, false, false, false },
+		/* X   */ { false, false, false, false, false },
+	};
+	
+	private static final boolean[][] COVERS = {
+		/*          IS     IX     S      SIX    X     */
+		/* IS  */ { true,  false, false, false, false },
+		/* IX  */ { true,  true,  false, false, false },
+		/* S   */ { true,  false, true,  false, false },
+		/* SIX */ { true,  true,  true,  true,  false },
+		/* X   */ { true,  true,  true,  true,  true  },
+	};
+	
+	public static LockMode of(Permissions perm) {
+		return perm.equals(Permissions.READ_ONLY)? S : X;
+	}
+	
+	/** @return true if two transactions may hold the modes on one resource */
+	public boolean isCompatible(LockMode other) {
+		return COMPATIBLE[ordinal()][other.ordinal()];
+	}
+	
+	/** @return true if holding this mode grants whatever other does */
+	public boolean covers(LockMode other) {
+		return COVERS[ordinal()][other.ordinal()];
+	}
+	
+	/** @return the weakest mode covering both */
+	public LockMode supremum(LockMode other) {
+		if (covers(other)) {
+			return this;
+		} else if (other.covers(this)) {
+			return other;
+		} else {
+			return SIX;	/* of IX and S */
+		}
+	}
+	
+	/** @return the mode to hold on the parent of a resource locked in this mode */
+	public LockMode intention() {
+		return this == IS || this == S? IS : IX;
+	}
+	
+	/**
+	 * @return the mode that holding this one on a resource grants on its
+	 *     descendants, or null
+	 */
+	public LockMode implied() {
+		switch (this) {
+		case S:
+		case SIX:
+			return S;
+		case X:
+			return X;
+		default:
+			return null;
+		}
+	}
+	
+	/** @return true for the modes reading only, which give way to queued writers */
+	boolean isShared() {
+		return this == IS || this == S;
+	}
+	
+}
@@ -0,0 +1,288 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * What the LockManager did: how many locks it granted, how many requests
+ * waited and for how long, overall and for the lock of each table and page
+ * among the most contended, and how many transactions it aborted. The
+ * statistics of the buffer pool of the Database are exported over JMX, and
+ * can be printed from another process with the "locks" command of SimpleDb.
+ */
+public class LockStats implements LockStatsMBean {
+	
+	/** The name the statistics of the Database are exported under. */
+	public static final String OBJECT_NAME = "simpledb:type=LockStats";
+	
+	/** Number of buckets of the wait histogram, each twice as wide as the last. */
+	public static final int HISTOGRAM_BUCKETS = 24;
+	
+	/**
+	 * Number of tables and pages counted apart, beyond which the half
+	 * waited for least is forgotten.
+	 */
+	public static final int TRACKED_RESOURCES = 1024;
+	
+	/** The counts of the lock on one table or page. */
+	private static class Counters {
+		final AtomicLong acquisitions = new AtomicLong(), waits = new AtomicLong(),
+				waitNanos = new AtomicLong();
+	}
+	
+	private final LockManager manager;
+	private final AtomicLong acquisitions = new AtomicLong(), waits = new AtomicLong(),
+			upgrades = new AtomicLong(), waitNanos = new AtomicLong();
+	final AtomicLong deadlocks = new AtomicLong(), preventiveAborts = new AtomicLong(),
+			escalations = new AtomicLong();
+	private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+	/* by table id or PageId */
+	private final ConcurrentMap<Object,Counters> resources;
+	
+	LockStats(LockManager manager) {
+		this.manager = manager;
+		resources = new ConcurrentHashMap<Object,Counters>();
+	}
+	
+	private Counters countersOf(Object resource) {
+		Counters counters = resources.get(resource);
+		
+		if (null == counters) {
+			resources.putIfAbsent(resource, new Counters());
+			counters = resources.get(resource);
+			if (resources.size() > TRACKED_RESOURCES) {
+				prune();
+			}
+		}
+		return counters;
+	}
+	
+	/** Keeps the counts of the TRACKED_RESOURCES/2 resources waited for longest. */
+	private synchronized void prune() {
+		if (resources.size() > TRACKED_RESOURCES) {
+			List<Object> sorted = mostContended();
+			
+			for (Object resource : sorted.subList(TRACKED_RESOURCES/2, sorted.size())) {
+				resources.remove(resource);
+			}
+		}
+	}
+	
+	/**
+	 * @return the resources counted, waited for longest first, then
+	 *     acquired most often
+	 */
+	private List<Object> mostContended() {
+		final Map<Object,long[]> counts = new HashMap<Object,long[]>();
+		
+		/* sorted on a copy, since the counts keep changing */
+		for (Map.Entry<Object,Counters> entry : resources.entrySet()) {
+			Counters counters = entry.getValue();
+			
+			counts.put(entry.getKey(), new long[] {counters.waitNanos.get(),
+					counters.acquisitions.get()});
+		}
+		
+		List<Object> sorted = new ArrayList<Object>(counts.keySet());
+		
+		Collections.sort(sorted, new Comparator<Object>() {
+			@Override public int compare(Object a, Object b) {
+				long[] x = counts.get(a), y = counts.get(b);
+				
+				return x[0] != y[0]? Long.compare(y[0], x[0]) : Long.compare(y[1], x[1]);
+			}
+		});
+		return sorted;
+	}
+	
+	/** Counts a lock request granted on the resource. */
+	void acquired(Object resource, boolean upgrade) {
+		Counters counters = countersOf(resource);
+		
+		acquisitions.incrementAndGet();
+		if (upgrade) {
+			upgrades.incrementAndGet();
+		}
+		if (null != counters) {
+			counters.acquisitions.incrementAndGet();
+		}
+	}
+	
+	/** Counts a wait for the lock on the resource, granted or not in the end. */
+	void waited(Object resource, long nanos) {
+		Counters counters = countersOf(resource);
+		
+		waits.incrementAndGet();
+		waitNanos.addAndGet(nanos);
+		histogram.incrementAndGet(bucketOf(nanos));
+		if (null != counters) {
+			counters.waits.incrementAndGet();
+			counters.waitNanos.addAndGet(nanos);
+		}
+	}
+	
+	static int bucketOf(long nanos) {
+		return Math.min(HISTOGRAM_BUCKETS-1, 64-Long.numberOfLeadingZeros(nanos/1000));
+	}
+	
+	static String nameOf(Object resource) {
+		return resource instanceof Integer? "Table("+resource+")" : resource.toString();
+	}
+	
+	@Override public long getAcquisitions() {
+		return acquisitions.get();
+	}
+	
+	@Override public long getWaits() {
+		return waits.get();
+	}
+	
+	@Override public long getUpgrades() {
+		return upgrades.get();
+	}
+	
+	@Override public long getWaitMicros() {
+		return waitNanos.get()/1000;
+	}
+	
+	@Override public long[] getWaitHistogram() {
+		long[] counts = new long[HISTOGRAM_BUCKETS];
+		
+		for (int i=0; i<counts.length; i++) {
+			counts[i] = histogram.get(i);
+		}
+		return counts;
+	}
+	
+	@Override public long getDeadlocks() {
+		return deadlocks.get();
+	}
+	
+	@Override public long getPreventiveAborts() {
+		return preventiveAborts.get();
+	}
+	
+	@Override public long getEscalations() {
+		return escalations.get();
+	}
+	
+	@Override public String[] topContended(int n) {
+		List<String> lines = new ArrayList<String>();
+		
+		for (Object resource : mostContended()) {
+			Counters counters = resources.get(resource);
+			
+			if (lines.size() == n) {
+				break;
+			} else if (null != counters && counters.waits.get() > 0) {
+				lines.add(nameOf(resource)+": "+counters.waits.get()+" waits for "
+						+counters.waitNanos.get()/1000+" us, "+counters.acquisitions.get()
+						+" acquisitions");
+			}
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+	
+	@Override public String[] getWaiters() {
+		List<String> waiters = manager.getWaiters();
+		
+		return waiters.toArray(new String[waiters.size()]);
+	}
+	
+	@Override public void reset() {
+		for (AtomicLong counter : new AtomicLong[] {acquisitions, waits, upgrades, waitNanos,
+				deadlocks, preventiveAborts, escalations}) {
+			counter.set(0);
+		}
+		for (int i=0; i<HISTOGRAM_BUCKETS; i++) {
+			histogram.set(i, 0);
+		}
+		resources.clear();
+	}
+	
+	/**
+	 * Exports the statistics over JMX under OBJECT_NAME, in place of those
+	 * exported before.
+	 */
+	static synchronized void export(LockStats stats) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(stats, name);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Prints the counts, the wait histogram, the n most contended tables and
+	 * pages, and the transactions waiting.
+	 */
+	public static void print(LockStatsMBean stats, int n, PrintStream out) {
+		long[] histogram = stats.getWaitHistogram();
+		
+		out.println("acquisitions: "+stats.getAcquisitions()+", upgrades: "+stats.getUpgrades()
+				+", waits: "+stats.getWaits()+" for "+stats.getWaitMicros()+" us");
+		out.println("deadlocks: "+stats.getDeadlocks()+", preventive aborts: "
+				+stats.getPreventiveAborts()+", escalations: "+stats.getEscalations());
+		out.println("waits by duration:");
+		for (int i=0; i<histogram.length; i++) {
+			if (histogram[i] > 0) {
+				out.println("  "+(i < histogram.length-1? "< "+(1L<<i) : ">= "+(1L<<(i-1)))
+						+" us: "+histogram[i]);
+			}
+		}
+		out.println("most contended:");
+		for (String line : stats.topContended(n)) {
+			out.println("  "+line);
+		}
+		out.println("waiting:");
+		for (String line : stats.getWaiters()) {
+			out.println("  "+line);
+		}
+	}
+	
+	/**
+	 * Prints the statistics of another process, reached over JMX at the
+	 * given host:port, like {@link #print}.
+	 */
+	public static void print(String address, int n, PrintStream out) throws IOException {
+		JMXConnector connector = JMXConnectorFactory.connect(
+				new JMXServiceURL("service:jmx:rmi:///jndi/rmi://"+address+"/jmxrmi"));
+		
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			
+			print(JMX.newMBeanProxy(connector.getMBeanServerConnection(), name,
+					LockStatsMBean.class), n, out);
+		} catch (JMException e) {
+			throw new IOException("bad object name: "+e.getMessage());
+		} finally {
+			connector.close();
+		}
+	}
+	
+}
@@ -0,0 +1,52 @@
+package simpledb;
+
+/**
+ * The management interface of the lock statistics of the buffer pool of
+ * the Database, exported over JMX as {@link LockStats#OBJECT_NAME}.
+ */
+public interface LockStatsMBean {
+	
+	/** @return the number of lock requests granted, at once or after a wait */
+	public long getAcquisitions();
+	
+	/** @return the number of lock requests that had to wait */
+	public long getWaits();
+	
+	/** @return the number of requests for a stronger mode on a lock held */
+	public long getUpgrades();
+	
+	/** @return the total time lock requests waited, in microseconds */
+	public long getWaitMicros();
+	
+	/**
+	 * @return the number of waits by duration: less than 1us in the first
+	 *     bucket, then up to 2us, 4us and so on, the last bucket counting
+	 *     every longer wait
+	 */
+	public long[] getWaitHistogram();
+	
+	/** @return the number of deadlocks detected, each aborting a transaction */
+	public long getDeadlocks();
+	
+	/** @return the number of transactions aborted by the deadlock prevention policy */
+	public long getPreventiveAborts();
+	
+	/** @return the number of times locks were escalated to their parent */
+	public long getEscalations();
+	
+	/**
+	 * @return a line for each of the n tables and pages whose locks were
+	 *     waited for longest in total, longest first
+	 */
+	public String[] topContended(int n);
+	
+	/**
+	 * @return a line for each transaction waiting for a lock: the lock, for
+	 *     how long, and the transactions it waits for
+	 */
+	public String[] getWaiters();
+	
+	/** Starts counting again from zero. */
+	public void reset();
+	
+}
@@ -16,7 +16,7 @@ two-phase locking discipline are followed.  <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
 writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
+latched (for similar reasons.)  Problem is that BufferPool writes
 log records (on page flushed) and the log file flushes BufferPool
 pages (on checkpoints and recovery.)  This can lead to deadlock.  For
 that reason, any LogFile operation that needs to access the BufferPool
@@ -24,12 +24,16 @@ must not be declared synchronized and must begin with a block like:
 
 <p>
 <pre>
-    synchronized (Database.getBufferPool()) {
+    BufferPool pool = Database.getBufferPool();
+    pool.latchAll();
+    try {
        synchronized (this) {
 
        ..
 
        }
+    } finally {
+       pool.unlatchAll();
     }
 </pre>
 */
@@ -144,10 +148,12 @@ public class LogFile {
         @param tid The aborting transaction.
     */
     public void logAbort(TransactionId tid) throws IOException {
-        // must have buffer pool lock before proceeding, since this
+        // must have buffer pool latches before proceeding, since this
         // calls rollback
 
-        synchronized (Database.getBufferPool()) {
+        BufferPool pool = Database.getBufferPool();
+        pool.latchAll();
+        try {
 
             synchronized(this) {
                 preAppend();
@@ -157,6 +163,11 @@ public class LogFile {
                 // must do this here, since rollback only works for
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
+                /*
+                 * and drop the changes that were not stolen yet, before
+                 * the STEAL writer can write them out
+                 */
+                pool.discardPages(tid);
 
                 raf.writeInt(ABORT_RECORD);
                 raf.writeLong(tid.getId());
@@ -165,6 +176,8 @@ public class LogFile {
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
+        } finally {
+            pool.unlatchAll();
         }
     }
 
@@ -265,7 +278,13 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            Constructor<?> pageConst = null;
+            for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+                Class<?>[] params = c.getParameterTypes();
+                if (params.length == 2 && params[1] == byte[].class) {
+                    pageConst = c;	// (PageId, byte[]): a page read from disk
+                }
+            }
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
@@ -275,7 +294,7 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -318,8 +337,10 @@ public class LogFile {
 
     /** Checkpoint the log and write a checkpoint record. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
+        //make sure we have buffer pool latches before proceeding
+        BufferPool pool = Database.getBufferPool();
+        pool.latchAll();
+        try {
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
@@ -353,6 +374,8 @@ public class LogFile {
                 currentOffset = raf.getFilePointer();
                 //Debug.log("CP OFFSET = " + currentOffset);
             }
+        } finally {
+            pool.unlatchAll();
         }
 
         logTruncate();
@@ -464,7 +487,9 @@ public class LogFile {
     */
     public void rollback(TransactionId tid)
         throws NoSuchElementException, IOException {
-        synchronized (Database.getBufferPool()) {
+        BufferPool pool = Database.getBufferPool();
+        pool.latchAll();
+        try {
             synchronized(this) {
                 preAppend();
                 // Done
@@ -493,9 +518,12 @@ public class LogFile {
                 	Database.getCatalog().getDatabaseFile
             				(page.getId().getTableId()).writePage(page);
             		Database.getBufferPool().discardPage(page.getId());
+            		BufferPool.undone(page.getId());
                 }
                 tidToFirstLogRecord.remove(tid);
             }
+        } finally {
+            pool.unlatchAll();
         }
     }
 
@@ -518,7 +546,9 @@ public class LogFile {
         updates of uncommitted transactions are not installed.
     */
     public void recover() throws IOException {
-        synchronized (Database.getBufferPool()) {
+        BufferPool pool = Database.getBufferPool();
+        pool.latchAll();
+        try {
             synchronized (this) {
                 recoveryUndecided = false;
                 // Done
@@ -584,7 +614,9 @@ public class LogFile {
                     rollback(TransactionId.of(tid));
                 }
             }
-         }
+        } finally {
+            pool.unlatchAll();
+        }
     }
 
     /** Print out a human readable represenation of the log */
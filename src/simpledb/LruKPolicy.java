@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K (O'Neil et al.): evicts the frame whose K-th most recent request is
+ * the oldest, so that pages touched only once (e.g. by a scan) go before
+ * pages that are requested repeatedly. Frames with fewer than K requests
+ * count as infinitely old and are ordered among themselves by plain LRU.
+ * <p>
+ * The request history of an evicted page is retained for a while, so that
+ * a page which comes right back keeps its frequency.
+ * <p>
+ * The frames are kept sorted by their K-th most recent request, so that a
+ * victim is the first evictable frame in that order rather than the result
+ * of a scan of every frame.
+ */
+public class LruKPolicy implements EvictionPolicy {
+	
+	private final int k;
+	private long clock = 0;
+	private final Map<Integer,PageId> pages = new HashMap<Integer,PageId>();
+	private final Map<Integer,long[]> history = new HashMap<Integer,long[]>();
+	/* the frames, the one to evict first first; re-sorted before history changes */
+	private final TreeSet<Integer> order = new TreeSet<Integer>(new Comparator<Integer>() {
+		@Override
+		public int compare(Integer a, Integer b) {
+			long[] x = history.get(a), y = history.get(b);
+			
+			if (x[k-1] != y[k-1]) {
+				return Long.compare(x[k-1], y[k-1]);
+			} else if (x[0] != y[0]) {
+				return Long.compare(x[0], y[0]);
+			}
+			return Integer.compare(a, b);
+		}
+	});
+	private final Map<PageId,long[]> retained = new LinkedHashMap<PageId,long[]>() {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<PageId,long[]> eldest) {
+			return size() > pages.size();
+		}
+	};
+	
+	/** Creates an LRU-2 policy. */
+	public LruKPolicy() {
+		this(2);
+	}
+	
+	public LruKPolicy(int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("K must be positive");
+		}
+		this.k = k;
+	}
+	
+	/* times[0] is the latest request, times[k-1] the k-th latest (0 if none) */
+	private void record(long[] times) {
+		System.arraycopy(times, 0, times, 1, k-1);
+		times[0] = ++clock;
+	}
+
+	@Override
+	public void admit(int frame, PageId pid) {
+		long[] times = retained.remove(pid);
+		
+		if (null == times) {
+			times = new long[k];
+		}
+		record(times);
+		if (history.containsKey(frame)) {
+			order.remove(frame);
+		}
+		pages.put(frame, pid);
+		history.put(frame, times);
+		order.add(frame);
+	}
+
+	@Override
+	public void access(int frame) {
+		long[] times = history.get(frame);
+		
+		if (null != times) {
+			order.remove(frame);
+			record(times);
+			order.add(frame);
+		}
+	}
+
+	@Override
+	public void remove(int frame) {
+		PageId pid = pages.get(frame);
+		
+		if (null != pid) {
+			order.remove(frame);
+			pages.remove(frame);
+			retained.put(pid, history.remove(frame));
+		}
+	}
+
+	@Override
+	public int victim(Candidates candidates) {
+		for (int frame : order) {
+			if (candidates.isEvictable(frame)) {
+				remove(frame);
+				return frame;
+			}
+		}
+		return -1;
+	}
+	
+}
@@ -0,0 +1,30 @@
+package simpledb;
+
+/**
+ * Evicts the evictable frame that has gone unrequested for the longest time.
+ */
+public class LruPolicy implements EvictionPolicy {
+	
+	private final FrameList frames = new FrameList();
+
+	@Override
+	public void admit(int frame, PageId pid) {
+		frames.addLast(frame);
+	}
+
+	@Override
+	public void access(int frame) {
+		frames.moveToLast(frame);
+	}
+
+	@Override
+	public void remove(int frame) {
+		frames.remove(frame);
+	}
+
+	@Override
+	public int victim(Candidates candidates) {
+		return frames.pollFirst(candidates);
+	}
+	
+}
@@ -0,0 +1,51 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The frames of an off-heap BufferPool: blocks of direct memory, each
+ * holding the data of CHUNK_PAGES frames followed by room for their before
+ * images. A block is allocated when one of its frames is first used, so
+ * the frames a resizable pool keeps in reserve cost no memory. Pages
+ * living there are decoded on access, so the heap footprint of the pool
+ * does not grow with its size.
+ * 
+ * @see HeapPage#HeapPage(HeapPageId, ByteBuffer, ByteBuffer)
+ */
+class PageArena {
+	
+	/** Number of frames whose memory is allocated at once. */
+	static final int CHUNK_PAGES = 64;
+	
+	private final ByteBuffer[] chunks;	/* protected by this */
+	
+	public PageArena(int numPages) {
+		chunks = new ByteBuffer[(numPages+CHUNK_PAGES-1)/CHUNK_PAGES];
+	}
+	
+	/** @return a view of the data of frame idx */
+	public ByteBuffer frame(int idx) {
+		return slice(idx/CHUNK_PAGES, idx%CHUNK_PAGES);
+	}
+	
+	/** @return a view of the before image of frame idx */
+	public ByteBuffer beforeImage(int idx) {
+		return slice(idx/CHUNK_PAGES, CHUNK_PAGES+idx%CHUNK_PAGES);
+	}
+	
+	private synchronized ByteBuffer chunk(int n) {
+		if (null == chunks[n]) {
+			chunks[n] = ByteBuffer.allocateDirect(2*CHUNK_PAGES*BufferPool.getPageSize());
+		}
+		return chunks[n];
+	}
+	
+	private ByteBuffer slice(int chunk, int n) {
+		ByteBuffer view = chunk(chunk).duplicate();
+		
+		view.position(n*BufferPool.getPageSize());
+		view.limit((n+1)*BufferPool.getPageSize());
+		return view.slice();
+	}
+	
+}
@@ -12,6 +12,9 @@ public class Parser {
     static boolean explain = false;
      static HashMap<String, TableStats> statsMap = new HashMap<String,TableStats>();
     private static final int IOCOSTPERPAGE = 1000;
+
+    /** Milliseconds between two saves of the buffer pool residency snapshot. */
+    private static final long SNAPSHOT_PERIOD = 60000;
     
     public static void setStatsMap(HashMap<String, TableStats> _statsMap) {
     	statsMap = _statsMap;
@@ -352,7 +355,7 @@ public class Parser {
 
     public static void handleTransactStatement(ZTransactStmt s) throws TransactionAbortedException, DbException, IOException, simpledb.ParsingException, Zql.ParseException {
         if (s.getStmtType().equals("COMMIT")) {
-            curtrans.transactionComplete(false);
+            curtrans.commit();
             curtrans = null;
             System.out.println("Transaction committed.");
         } else if (s.getStmtType().equals("ROLLBACK")) {
@@ -474,6 +477,15 @@ public class Parser {
         }
         System.out.println("Done.");
 
+        // warm the buffer pool up with the pages cached before the last shutdown
+        File snapshot = new File(argv[0] + ".pages");
+        if (snapshot.exists()) {
+            System.out.println("Warming up the buffer pool.");
+            int loaded = Database.getBufferPool().loadResidency(snapshot);
+            System.out.println("Loaded " + loaded + " pages.");
+        }
+        Database.getBufferPool().setResidencySnapshot(snapshot, SNAPSHOT_PERIOD);
+
         boolean interactive = true;
         String queryFile = null;
 
@@ -542,6 +554,8 @@ public class Parser {
                 }
             }
         }
+        Database.getBufferPool().setResidencySnapshot(null, 0);
+        Database.getBufferPool().saveResidency(snapshot);
     }
 }
 
@@ -90,6 +90,16 @@ public class SimpleDb {
             }
 
         }
+        else if (args[0].equals("locks")) {
+            // dump the lock statistics of a running instance, exported over
+            // JMX (-Dcom.sun.management.jmxremote.port=...)
+            if (args.length < 2 || args.length > 3) {
+                System.err.println("Usage: locks host:port [n]");
+                return;
+            }
+            int n = args.length == 3 ? Integer.parseInt(args[2]) : 10;
+            LockStats.print(args[1], n, System.out);
+        }
         else {
             System.err.println("Unknown command: " + args[0]);
             System.exit(1);
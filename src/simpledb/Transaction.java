@@ -25,12 +25,49 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction running as a read-only snapshot: it reads the
+     * database as of the last commit, without taking locks.
+     */
+    public void startSnapshot() {
+        Database.getBufferPool().beginSnapshot(tid);
+        start();
+    }
+
+    /**
+     * Start the transaction running optimistically: it takes no locks until
+     * it commits, when it is validated against the transactions that
+     * committed meanwhile.
+     *
+     * @see BufferPool#beginOptimistic
+     */
+    public void startOptimistic() {
+        Database.getBufferPool().beginOptimistic(tid);
+        start();
+    }
+
     public TransactionId getId() {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    /**
+     * Finish the transaction
+     *
+     * @throws TransactionAbortedException if the transaction ran
+     *     optimistically and failed validation; it is aborted
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException e) {
+                abort();
+                throw e;
+            } catch (DbException e) {
+                abort();
+                throw new IOException(e.getMessage());
+            }
+        }
         transactionComplete(false);
     }
 
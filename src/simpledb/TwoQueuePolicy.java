@@ -0,0 +1,77 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The full 2Q algorithm (Johnson and Shasha). Pages seen for the first time
+ * enter a FIFO queue A1in; when they are evicted from there, their ids are
+ * remembered in a ghost queue A1out. Only a page that is requested again
+ * while its id is in A1out is admitted to the LRU-managed main queue Am, so
+ * pages touched by a single scan never displace the hot set.
+ */
+public class TwoQueuePolicy implements EvictionPolicy {
+	
+	private static final double KIN = 0.25, KOUT = 0.5;
+	
+	private final FrameList a1in = new FrameList();
+	private final FrameList am = new FrameList();
+	private final Set<PageId> a1out = new LinkedHashSet<PageId>();
+	private final Map<Integer,PageId> pages = new HashMap<Integer,PageId>();
+	private int numFrames = 0;
+
+	@Override
+	public void admit(int frame, PageId pid) {
+		numFrames = Math.max(numFrames, frame+1);
+		pages.put(frame, pid);
+		if (a1out.remove(pid)) {
+			am.addLast(frame);
+		} else {
+			a1in.addLast(frame);
+		}
+	}
+
+	@Override
+	public void access(int frame) {
+		/* re-requests while in A1in are treated as correlated */
+		am.moveToLast(frame);
+	}
+
+	@Override
+	public void remove(int frame) {
+		pages.remove(frame);
+		a1in.remove(frame);
+		am.remove(frame);
+	}
+
+	@Override
+	public int victim(Candidates candidates) {
+		int victim = FrameList.NIL;
+		
+		if (a1in.size() > Math.max(1, (int)(KIN*numFrames))) {
+			victim = a1in.pollFirst(candidates);
+		}
+		if (FrameList.NIL == victim) {
+			victim = am.pollFirst(candidates);
+			if (FrameList.NIL != victim) {
+				pages.remove(victim);
+				return victim;
+			}
+			victim = a1in.pollFirst(candidates);
+		}
+		if (FrameList.NIL != victim) {
+			a1out.add(pages.remove(victim));
+			if (a1out.size() > Math.max(1, (int)(KOUT*numFrames))) {
+				Iterator<PageId> it = a1out.iterator();
+				
+				it.next();
+				it.remove();
+			}
+		}
+		return victim;
+	}
+	
+}
@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The committed images of pages that snapshot transactions may still need.
+ * Every commit gets a timestamp, and a snapshot transaction reads the pages
+ * as of the last commit before it began: the committed image of a page
+ * overwritten since is kept here until no snapshot can see it any more.
+ * Nothing is kept while no snapshot is running. Optimistic transactions
+ * read through snapshots as well, and at commit check that no page they
+ * read was overwritten since theirs began.
+ * <p>
+ * Commits hold the write side of the latch while they write their pages
+ * out, and snapshot reads the read side while they find their version, so
+ * that a snapshot never sees half of a commit.
+ */
+class VersionStore {
+	
+	/** A committed image of a page, current from one commit until the next. */
+	private static class Version {
+		final long from, until;
+		final byte[] data;
+		
+		Version(long from, long until, byte[] data) {
+			this.from = from;
+			this.until = until;
+			this.data = data;
+		}
+	}
+	
+	final ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
+	private long clock = 0;	/* the last commit timestamp, protected by the write latch */
+	/* the read timestamps of the snapshots running */
+	private final ConcurrentMap<TransactionId,Long> snapshots;
+	/* the last commit of the pages committed since the oldest snapshot began */
+	private final Map<PageId,Long> lastCommits;
+	/* the older images of these pages, newest first */
+	private final Map<PageId,LinkedList<Version>> versions;
+	
+	VersionStore() {
+		snapshots = new ConcurrentHashMap<TransactionId,Long>();
+		lastCommits = new HashMap<PageId,Long>();
+		versions = new HashMap<PageId,LinkedList<Version>>();
+	}
+	
+	/** Starts a snapshot for the transaction, as of the last commit. */
+	void begin(TransactionId tid) {
+		latch.writeLock().lock();
+		try {
+			snapshots.put(tid, clock);
+		} finally {
+			latch.writeLock().unlock();
+		}
+	}
+	
+	boolean isSnapshot(TransactionId tid) {
+		return snapshots.containsKey(tid);
+	}
+	
+	/** Returns whether any snapshot is running. */
+	boolean hasSnapshots() {
+		return !snapshots.isEmpty();
+	}
+	
+	/** Ends the snapshot of the transaction, if any, dropping the versions nobody needs. */
+	void end(TransactionId tid) {
+		if (null != snapshots.remove(tid)) {
+			latch.writeLock().lock();
+			try {
+				long oldest = Long.MAX_VALUE;
+				
+				for (long readTs : snapshots.values()) {
+					oldest = Math.min(oldest, readTs);
+				}
+				for (Iterator<Long> it = lastCommits.values().iterator(); it.hasNext(); ) {
+					if (it.next() <= oldest) {
+						it.remove();
+					}
+				}
+				for (Iterator<LinkedList<Version>> it = versions.values().iterator(); it.hasNext(); ) {
+					LinkedList<Version> list = it.next();
+					
+					while (!list.isEmpty() && list.getLast().until <= oldest) {
+						list.removeLast();
+					}
+					if (list.isEmpty()) {
+						it.remove();
+					}
+				}
+			} finally {
+				latch.writeLock().unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Records a commit overwriting the given pages, whose before images are
+	 * still the previous committed ones. To be called with the write latch
+	 * held, before the pages are written out.
+	 */
+	void commit(Iterable<Page> pages) {
+		long commitTs = ++clock;
+		
+		if (snapshots.isEmpty()) {
+			return;
+		}
+		for (Page page : pages) {
+			PageId pid = page.getId();
+			Long from = lastCommits.put(pid, commitTs);
+			LinkedList<Version> list = versions.get(pid);
+			
+			if (null == list) {
+				list = new LinkedList<Version>();
+				versions.put(pid, list);
+			}
+			list.addFirst(new Version(null == from? 0 : from, commitTs,
+					page.getBeforeImage().getPageData()));
+		}
+	}
+	
+	/**
+	 * @return true if a commit overwrote the page since the snapshot of the
+	 *     transaction began. To be called with the latch held.
+	 */
+	boolean isOverwritten(TransactionId tid, PageId pid) {
+		Long readTs = snapshots.get(tid);
+		Long last = lastCommits.get(pid);
+		
+		return null != readTs && null != last && last > readTs;
+	}
+	
+	/**
+	 * Finds the image of the page the snapshot of the transaction sees. To
+	 * be called with the read latch held.
+	 *
+	 * @return the image, or null if it is the last committed one
+	 */
+	Page getVersion(TransactionId tid, PageId pid) throws DbException {
+		Long readTs = snapshots.get(tid);
+		Long last = lastCommits.get(pid);
+		
+		if (null == readTs || null == last || last <= readTs) {
+			return null;
+		}
+		for (Version version : versions.get(pid)) {
+			if (version.from <= readTs) {
+				try {
+					return new HeapPage((HeapPageId) pid, version.data);
+				} catch (IOException e) {
+					throw new DbException("bad page version: "+e.getMessage());
+				}
+			}
+		}
+		throw new IllegalStateException("no version of "+pid+" as of "+readTs);
+	}
+	
+}
@@ -0,0 +1,395 @@
+package simpledb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    /** Tuples of two int columns that fill one page. */
+    private static final int TUPLES_PER_PAGE = 504;
+    private static final int POOL_PAGES = 40;
+    /** Milliseconds to wait at most for the read-ahead to load a page. */
+    private static final long READ_AHEAD_TIMEOUT = 10000;
+
+    private HeapFile hot, big;
+    private BufferPool bp;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        hot = SystemTestUtil.createRandomHeapFile(2, 4 * TUPLES_PER_PAGE, null, null);
+        big = SystemTestUtil.createRandomHeapFile(2, 100 * TUPLES_PER_PAGE, null, null);
+        bp = Database.resetBufferPool(POOL_PAGES);
+    }
+
+    private Page[] readHotPages(TransactionId tid) throws Exception {
+        Page[] pages = new Page[hot.numPages()];
+        for (int i = 0; i < pages.length; ++i) {
+            pages[i] = bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        }
+        return pages;
+    }
+
+    private void scanBigTable() throws Exception {
+        SeqScan scan = new SeqScan(new TransactionId(), big.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+        }
+        scan.close();
+    }
+
+    /**
+     * A scan larger than the ring threshold recycles its own frames, so the
+     * pages read before it are still resident afterwards.
+     */
+    @Test public void largeScanKeepsWorkingSet() throws Exception {
+        TransactionId tid = new TransactionId();
+        Page[] before = readHotPages(tid);
+        scanBigTable();
+        Page[] after = readHotPages(tid);
+        for (int i = 0; i < before.length; ++i) {
+            assertSame(before[i], after[i]);
+        }
+    }
+
+    /** Without the ring, the same scan flushes the working set. */
+    @Test public void largeScanWithoutRingEvictsWorkingSet() throws Exception {
+        bp.setScanRingThreshold(Double.MAX_VALUE);
+        TransactionId tid = new TransactionId();
+        Page[] before = readHotPages(tid);
+        scanBigTable();
+        assertNotSame(before[0], readHotPages(tid)[0]);
+    }
+
+    /** Waits until pages 0..n-1 of the file are resident, failing after READ_AHEAD_TIMEOUT. */
+    private void awaitResidentPages(HeapFile f, int n) throws Exception {
+        long deadline = System.currentTimeMillis() + READ_AHEAD_TIMEOUT;
+        while (numResidentPages(f, n) < n) {
+            assertTrue("read-ahead timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Scans the hot table, pausing after the first page until the first
+     * prefetched pages are resident.
+     */
+    private void scanHotTable(int prefetched) throws Exception {
+        SeqScan scan = new SeqScan(new TransactionId(), hot.getId(), "");
+        scan.open();
+        assertTrue(scan.hasNext());
+        awaitResidentPages(hot, 1 + prefetched);
+        while (scan.hasNext()) {
+            scan.next();
+        }
+        scan.close();
+    }
+
+    /** Pages following the one being read are loaded in the background. */
+    @Test public void readAheadServesScan() throws Exception {
+        bp.setReadAheadDepth(4);
+        scanHotTable(hot.numPages() - 1);
+        assertEquals(hot.numPages() - 1, bp.getPrefetchHits());
+        assertEquals(0, bp.getWastedPrefetches());
+    }
+
+    @Test public void readAheadDisabledByDefault() throws Exception {
+        scanHotTable(0);
+        assertEquals(0, bp.getPrefetchHits());
+        assertEquals(0, bp.getWastedPrefetches());
+    }
+
+    /** A prefetched page dropped before anyone requests it was wasted. */
+    @Test public void discardedPrefetchIsWasted() throws Exception {
+        PageId pid = new HeapPageId(hot.getId(), 0);
+        bp.prefetchPage(pid, null);
+        awaitResidentPages(hot, 1);
+        bp.discardPage(pid);
+        assertEquals(0, bp.getPrefetchHits());
+        assertEquals(1, bp.getWastedPrefetches());
+    }
+
+    /** An off-heap pool serves the same tuples, also from evicted pages. */
+    @Test public void offHeapPool() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPage heapPage = (HeapPage) bp.getPage(tid, new HeapPageId(hot.getId(), 0),
+                Permissions.READ_ONLY);
+        bp = Database.resetBufferPool(new BufferPool(POOL_PAGES, new ClockPolicy(), true));
+        HeapPage first = (HeapPage) bp.getPage(tid, new HeapPageId(hot.getId(), 0),
+                Permissions.READ_ONLY);
+        assertArrayEquals(heapPage.getPageData(), first.getPageData());
+
+        bp.setScanRingThreshold(Double.MAX_VALUE);
+        scanBigTable();
+        assertNotSame(first, bp.getPage(tid, first.getId(), Permissions.READ_ONLY));
+        Iterator<Tuple> it = heapPage.iterator(), jt = first.iterator();
+        while (it.hasNext()) {
+            assertTrue(TestUtil.compareTuples(it.next(), jt.next()));
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /** A pinned page survives a scan that flushes the rest of the pool. */
+    @Test public void pinnedPageIsNotEvicted() throws Exception {
+        bp.setScanRingThreshold(Double.MAX_VALUE);
+        TransactionId tid = new TransactionId();
+        PageId pid = new HeapPageId(hot.getId(), 0);
+        Page pinned = bp.pinPage(tid, pid, Permissions.READ_ONLY);
+        Page other = bp.getPage(tid, new HeapPageId(hot.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(pid));
+
+        scanBigTable();
+        assertSame(pinned, bp.getPage(tid, pid, Permissions.READ_ONLY));
+        assertNotSame(other, bp.getPage(tid, other.getId(), Permissions.READ_ONLY));
+
+        bp.unpinPage(tid, pid);
+        assertEquals(0, bp.getPinCount(pid));
+        scanBigTable();
+        assertNotSame(pinned, bp.getPage(tid, pid, Permissions.READ_ONLY));
+    }
+
+    /** Pins left over when a transaction completes are released. */
+    @Test public void transactionCompleteReleasesPins() throws Exception {
+        bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        bp.pinPage(tid, new HeapPageId(hot.getId(), 0), Permissions.READ_ONLY);
+        bp.pinPage(tid, new HeapPageId(hot.getId(), 1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, new HeapPageId(hot.getId(), 2), Permissions.READ_ONLY);
+            fail("every frame is pinned; expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getPinCount(new HeapPageId(hot.getId(), 0)));
+        bp.getPage(new TransactionId(), new HeapPageId(hot.getId(), 2), Permissions.READ_ONLY);
+    }
+
+    /**
+     * A shard whose frames are all pinned borrows a frame from another shard
+     * rather than failing while the pool has room.
+     */
+    @Test public void fullShardBorrowsFrame() throws Exception {
+        bp = Database.resetBufferPool(new BufferPool(4, 2));
+        ArrayList<PageId> sameShard = new ArrayList<PageId>();
+        for (int i = 0; sameShard.size() < 5; ++i) {
+            PageId pid = new HeapPageId(big.getId(), i);
+            if ((pid.hashCode() & 0x7fffffff) % 2 == 0) {
+                sameShard.add(pid);
+            }
+        }
+        TransactionId tid = new TransactionId();
+        for (PageId pid : sameShard.subList(0, 4)) {
+            bp.pinPage(tid, pid, Permissions.READ_ONLY);
+        }
+        for (PageId pid : sameShard.subList(0, 4)) {
+            assertTrue(bp.isResident(pid));
+        }
+        try {
+            bp.getPage(tid, sameShard.get(4), Permissions.READ_ONLY);
+            fail("every frame is pinned; expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /** An iterator may still be closed after its transaction completed. */
+    @Test public void closeAfterCommit() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hot.iterator(tid);
+        it.open();
+        assertTrue(it.hasNext());
+        it.next();
+        bp.transactionComplete(tid);
+        it.close();
+        assertEquals(0, bp.getPinCount(new HeapPageId(hot.getId(), 0)));
+    }
+
+    /** A snapshot lists the resident pages hottest first and reloads them. */
+    @Test public void warmRestart() throws Exception {
+        TransactionId tid = new TransactionId();
+        int[] requests = {1, 2, 0, 3};
+        for (int i = 0; i < requests.length; ++i) {
+            for (int j = 0; j <= requests[i]; ++j) {
+                bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+            }
+        }
+        bp.transactionComplete(tid);
+
+        File snapshot = File.createTempFile("residency", ".pages");
+        snapshot.deleteOnExit();
+        bp.saveResidency(snapshot);
+        BufferedReader in = new BufferedReader(new FileReader(snapshot));
+        for (int pgNo : new int[] {3, 1, 0, 2}) {
+            assertEquals(hot.getId() + " " + pgNo, in.readLine());
+        }
+        assertNull(in.readLine());
+        in.close();
+
+        bp = Database.resetBufferPool(POOL_PAGES);
+        assertEquals(hot.numPages(), bp.loadResidency(snapshot));
+        for (int i = 0; i < hot.numPages(); ++i) {
+            assertTrue(bp.isResident(new HeapPageId(hot.getId(), i)));
+        }
+        // already resident pages are not loaded twice
+        assertEquals(0, bp.loadResidency(snapshot));
+    }
+
+    /** Reads pages 0..n-1 of the big table rounds times over. */
+    private void readBigPages(TransactionId tid, int n, int rounds) throws Exception {
+        for (int round = 0; round < rounds; ++round) {
+            for (int i = 0; i < n; ++i) {
+                bp.getPage(tid, new HeapPageId(big.getId(), i), Permissions.READ_ONLY);
+            }
+        }
+    }
+
+    /** @return how many of pages 0..n-1 of the file are resident */
+    private int numResidentPages(HeapFile f, int n) {
+        int resident = 0;
+        for (int i = 0; i < n; ++i) {
+            if (bp.isResident(new HeapPageId(f.getId(), i))) {
+                resident++;
+            }
+        }
+        return resident;
+    }
+
+    /** A pool created with room to grow caches more pages once resized. */
+    @Test public void resizePastInitialSize() throws Exception {
+        bp = Database.resetBufferPool(BufferPool.withCapacity(8, POOL_PAGES));
+        assertEquals(8, bp.numPages());
+        assertEquals(POOL_PAGES, bp.capacity());
+        TransactionId tid = new TransactionId();
+        readBigPages(tid, 20, 1);
+        assertEquals(8, numResidentPages(big, 20));
+
+        bp.resize(POOL_PAGES);
+        readBigPages(tid, 20, 1);
+        assertEquals(20, numResidentPages(big, 20));
+        bp.transactionComplete(tid);
+    }
+
+    /** A pool shrunk online caches fewer pages, and may grow back to its capacity. */
+    @Test public void resize() throws Exception {
+        TransactionId tid = new TransactionId();
+        readBigPages(tid, 20, 1);
+        bp.resize(8);
+        assertEquals(8, bp.numPages());
+        assertEquals(POOL_PAGES, bp.capacity());
+        assertEquals(8, numResidentPages(big, 20));
+        readBigPages(tid, 20, 1);
+        assertEquals(8, numResidentPages(big, 20));
+
+        bp.resize(POOL_PAGES);
+        readBigPages(tid, 20, 1);
+        assertEquals(20, numResidentPages(big, 20));
+        bp.transactionComplete(tid);
+
+        try {
+            bp.resize(POOL_PAGES + 1);
+            fail("the pool cannot grow past its capacity");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Ghost hits make the auto-tuner grow the pool to the pages cycled
+     * through; once fewer are requested, it shrinks to the working set.
+     */
+    @Test public void autoTuning() throws Exception {
+        TransactionId tid = new TransactionId();
+        bp.resize(8);
+        bp.setAutoTuning(4, POOL_PAGES, 3600 * 1000);
+        readBigPages(tid, 20, 3);
+        assertEquals(20, bp.tune());
+        assertEquals(20, bp.numPages());
+
+        readBigPages(tid, 2, 200);
+        assertEquals(4, bp.tune());
+        assertEquals(4, bp.numPages());
+        bp.setAutoTuning(0, 0, 0);
+        bp.transactionComplete(tid);
+    }
+
+    /** Pages of a table assigned to a sub-pool are not evicted by traffic on other tables. */
+    @Test public void subPool() throws Exception {
+        bp = Database.resetBufferPool(new BufferPool(8,
+                new BufferPool.SubPool("keep", hot.numPages(), new LruPolicy())));
+        assertEquals(8 + hot.numPages(), bp.numPages());
+        bp.setScanRingThreshold(Double.MAX_VALUE);
+        Database.getCatalog().setBufferPool(hot.getId(), "keep");
+        TransactionId tid = new TransactionId();
+        Page[] before = readHotPages(tid);
+        scanBigTable();
+        Page[] after = readHotPages(tid);
+        for (int i = 0; i < before.length; ++i) {
+            assertSame(before[i], after[i]);
+        }
+
+        // the sub-pool only holds its own frames
+        Database.getCatalog().setBufferPool(big.getId(), "keep");
+        readBigPages(tid, 1, 1);
+        assertTrue(bp.isResident(new HeapPageId(big.getId(), 0)));
+        assertEquals(hot.numPages() - 1, numResidentPages(hot, hot.numPages()));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Pages cached before their table is assigned to a sub-pool stay in their
+     * frames until they leave the pool, and are read back into the sub-pool.
+     */
+    @Test public void subPoolReassignment() throws Exception {
+        bp = Database.resetBufferPool(new BufferPool(8,
+                new BufferPool.SubPool("keep", hot.numPages(), new LruPolicy())));
+        TransactionId tid = new TransactionId();
+        Page[] before = readHotPages(tid);
+        Database.getCatalog().setBufferPool(hot.getId(), "keep");
+        Page[] after = readHotPages(tid);
+        for (int i = 0; i < before.length; ++i) {
+            assertSame(before[i], after[i]);
+        }
+        bp.pinPage(tid, before[0].getId(), Permissions.READ_ONLY);
+        assertEquals(1, bp.getPinCount(before[0].getId()));
+        bp.unpinPage(tid, before[0].getId());
+
+        bp.discardPage(before[0].getId());
+        assertFalse(bp.isResident(before[0].getId()));
+        bp.transactionComplete(tid);
+        tid = new TransactionId();
+        bp.getPage(tid, before[0].getId(), Permissions.READ_ONLY);
+        readBigPages(tid, 20, 1);
+        assertEquals(1, numResidentPages(hot, hot.numPages()));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
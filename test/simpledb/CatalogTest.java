@@ -1,7 +1,12 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.NoSuchElementException;
 
 import junit.framework.Assert;
@@ -68,6 +73,84 @@ public class CatalogTest extends SimpleDbTestBase {
         assertEquals(-1, f.getId());
     }
 
+    /**
+     * Unit test for Catalog.setBufferPool() and getBufferPool()
+     */
+    @Test public void bufferPool() {
+        Database.setSubPools(new BufferPool.SubPool("keep", 4, new ClockPolicy()));
+        assertNull(Database.getCatalog().getBufferPool(-1));
+        Database.getCatalog().setBufferPool(-1, "keep");
+        assertEquals("keep", Database.getCatalog().getBufferPool(-1));
+        assertNull(Database.getCatalog().getBufferPool(-2));
+        Database.getCatalog().setBufferPool(-1, null);
+        assertNull(Database.getCatalog().getBufferPool(-1));
+    }
+
+    /**
+     * Catalog.setBufferPool() refuses a pool the buffer pool does not have
+     */
+    @Test(expected=IllegalArgumentException.class)
+    public void unknownBufferPool() {
+        Database.getCatalog().setBufferPool(-1, "keep");
+    }
+
+    /**
+     * Unit test for Catalog.loadSchema() with a sub-pool: the schema declares
+     * it, and the pages of the table assigned to it are cached there
+     */
+    @Test public void loadSchemaSubPool() throws Exception {
+        File dat = SystemTestUtil.createRandomHeapFileUnopened(2, 1000, 100, null, null);
+        String table = dat.getName().substring(0, dat.getName().length() - 4);
+        File schema = writeSchema(dat, "pool keep 4", table + " (a int, b int) pool keep");
+
+        Database.getCatalog().loadSchema(schema.getPath());
+        BufferPool bp = Database.getBufferPool();
+        assertTrue(bp.hasSubPool("keep"));
+        int tableId = Database.getCatalog().getTableId(table);
+        assertEquals("keep", Database.getCatalog().getBufferPool(tableId));
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 2; ++i) {
+            PageId pid = new HeapPageId(tableId, i);
+            bp.getPage(tid, pid, Permissions.READ_ONLY);
+            assertEquals("keep", bp.subPoolOf(pid));
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Catalog.loadSchema() refuses a table assigned to an undeclared pool
+     */
+    @Test(expected=IllegalArgumentException.class)
+    public void loadSchemaUnknownPool() throws Exception {
+        File dat = SystemTestUtil.createRandomHeapFileUnopened(2, 10, 100, null, null);
+        String table = dat.getName().substring(0, dat.getName().length() - 4);
+        File schema = writeSchema(dat, table + " (a int, b int) pool keep");
+        Database.getCatalog().loadSchema(schema.getPath());
+    }
+
+    /**
+     * Catalog.loadSchema() throws on an unknown table option
+     */
+    @Test(expected=IllegalArgumentException.class)
+    public void loadSchemaUnknownOption() throws Exception {
+        File dat = SystemTestUtil.createRandomHeapFileUnopened(2, 10, 100, null, null);
+        String table = dat.getName().substring(0, dat.getName().length() - 4);
+        File schema = writeSchema(dat, table + " (a int, b int) cached");
+        Database.getCatalog().loadSchema(schema.getPath());
+    }
+
+    /** Writes the given lines to a schema file next to the given table */
+    private static File writeSchema(File dat, String... lines) throws IOException {
+        File schema = File.createTempFile("catalog", ".txt", dat.getParentFile());
+        schema.deleteOnExit();
+        PrintWriter out = new PrintWriter(schema);
+        for (String line : lines) {
+            out.println(line);
+        }
+        out.close();
+        return schema;
+    }
+
     /**
      * JUnit suite target
      */
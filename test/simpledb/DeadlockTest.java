@@ -8,6 +8,9 @@ import org.junit.Test;
 import simpledb.TestUtil.LockGrabber;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class DeadlockTest extends TestUtil.CreateHeapFile {
@@ -200,6 +203,113 @@ public class DeadlockTest extends TestUtil.CreateHeapFile {
     }
   }
 
+  /**
+   * The request closing a cycle in the waits-for graph is refused at once,
+   * while the transaction it would have waited for keeps waiting.
+   */
+  @Test public void deadlockDetectedOnBlock() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+    LockGrabber lg1Write = startGrabber(tid1, p1, Permissions.READ_WRITE);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1Write.acquired());
+
+    try {
+      bp.getPage(tid2, p0, Permissions.READ_WRITE);
+      fail("tid1 waits for tid2; expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertEquals(1, bp.getDeadlocks());
+    assertFalse(lg1Write.acquired());
+
+    bp.transactionComplete(tid2, false);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg1Write.acquired());
+    assertNull(lg1Write.getError());
+  }
+
+  /**
+   * Under wait-die, an older transaction waits for a younger one, and a
+   * younger one asking for a lock held by an older one aborts at once.
+   */
+  @Test public void waitDie() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WAIT_DIE);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    try {
+      bp.getPage(tid2, p0, Permissions.READ_ONLY);
+      fail("tid2 is younger than tid1; expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertEquals(1, bp.lock.getPreventiveAborts());
+
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_ONLY);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1.acquired());
+    assertNull(lg1.getError());
+    bp.transactionComplete(tid2, false);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg1.acquired());
+  }
+
+  /**
+   * Under wound-wait, a younger transaction waits for an older one, and an
+   * older one asking for a lock held by a younger one aborts it.
+   */
+  @Test public void woundWait() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    LockGrabber lg2 = startGrabber(tid2, p0, Permissions.READ_ONLY);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg2.acquired());
+    assertNull(lg2.getError());
+
+    // tid1 wounds tid2, which gives up the wait on p0 and its locks
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_ONLY);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg2.getError() instanceof TransactionAbortedException);
+    assertTrue(lg1.acquired());
+    assertEquals(1, bp.lock.getPreventiveAborts());
+    assertEquals(0, bp.getDeadlocks());
+  }
+
+  /**
+   * Under wound-wait, a wounded transaction that is not waiting aborts on
+   * its next page request, even for a page it holds, or when it commits.
+   * The abort is counted once, when it happens.
+   */
+  @Test public void woundedRunningTransaction() throws Exception {
+    bp.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+
+    // tid1 wounds tid2, which has yet to find out
+    LockGrabber lg1 = startGrabber(tid1, p1, Permissions.READ_ONLY);
+    Thread.sleep(POLL_INTERVAL);
+    assertFalse(lg1.acquired());
+    assertEquals(0, bp.lock.getPreventiveAborts());
+
+    try {
+      bp.getPage(tid2, p1, Permissions.READ_WRITE);
+      fail("tid2 was wounded; expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    try {
+      bp.validate(tid2);
+      fail("tid2 was wounded; expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    assertEquals(1, bp.lock.getPreventiveAborts());
+
+    bp.transactionComplete(tid2, false);
+    Thread.sleep(POLL_INTERVAL);
+    assertTrue(lg1.acquired());
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,103 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+public class EvictionPolicyTest {
+
+    private static final EvictionPolicy.Candidates ALL = new EvictionPolicy.Candidates() {
+        public boolean isEvictable(int frame) {
+            return true;
+        }
+    };
+
+    private static EvictionPolicy.Candidates allBut(final int pinned) {
+        return new EvictionPolicy.Candidates() {
+            public boolean isEvictable(int frame) {
+                return frame != pinned;
+            }
+        };
+    }
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /** Loads pages 0..n-1 into frames 0..n-1. */
+    private static EvictionPolicy fill(EvictionPolicy policy, int n) {
+        for (int i = 0; i < n; ++i) {
+            policy.admit(i, pid(i));
+        }
+        return policy;
+    }
+
+    @Test public void lruEvictsLeastRecentlyUsed() {
+        EvictionPolicy policy = fill(new LruPolicy(), 3);
+        policy.access(0);
+        assertEquals(1, policy.victim(ALL));
+        assertEquals(2, policy.victim(ALL));
+        assertEquals(0, policy.victim(ALL));
+        assertEquals(-1, policy.victim(ALL));
+    }
+
+    @Test public void clockGivesSecondChance() {
+        EvictionPolicy policy = fill(new ClockPolicy(), 3);
+        // the first sweep clears all reference bits
+        assertEquals(0, policy.victim(ALL));
+        policy.admit(0, pid(3));
+        policy.access(1);
+        assertEquals(2, policy.victim(ALL));
+    }
+
+    @Test public void lru2PrefersPagesRequestedOnce() {
+        EvictionPolicy policy = fill(new LruKPolicy(2), 3);
+        policy.access(0);
+        policy.access(2);
+        assertEquals(1, policy.victim(ALL));
+        // the older second-to-last request loses
+        assertEquals(0, policy.victim(ALL));
+    }
+
+    @Test public void twoQueuePromotesGhostHits() {
+        EvictionPolicy policy = fill(new TwoQueuePolicy(), 4);
+        assertEquals(0, policy.victim(ALL));
+        // page 0 comes back while remembered in A1out: it enters Am
+        policy.admit(0, pid(0));
+        assertEquals(1, policy.victim(ALL));
+        assertEquals(2, policy.victim(ALL));
+        // A1in keeps its reserved quarter of the frames before Am gives way
+        assertEquals(0, policy.victim(ALL));
+        assertEquals(3, policy.victim(ALL));
+    }
+
+    @Test public void skipsUnevictableFrames() {
+        EvictionPolicy[] policies = {new LruPolicy(), new ClockPolicy(),
+                new LruKPolicy(2), new TwoQueuePolicy()};
+        for (EvictionPolicy policy : policies) {
+            fill(policy, 2);
+            assertEquals(1, policy.victim(allBut(0)));
+            assertEquals(-1, policy.victim(allBut(0)));
+        }
+    }
+
+    @Test public void removedFramesAreNotChosen() {
+        EvictionPolicy[] policies = {new LruPolicy(), new ClockPolicy(),
+                new LruKPolicy(2), new TwoQueuePolicy()};
+        for (EvictionPolicy policy : policies) {
+            fill(policy, 2);
+            policy.remove(0);
+            policy.remove(5);
+            assertEquals(1, policy.victim(ALL));
+            assertEquals(-1, policy.victim(ALL));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
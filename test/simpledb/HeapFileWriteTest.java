@@ -1,5 +1,9 @@
 package simpledb;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -43,6 +47,168 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    private HeapPage pageWith(int pgNo, int value) throws Exception {
+        HeapPage page = new HeapPage(new HeapPageId(empty.getId(), pgNo),
+                HeapPage.createEmptyPageData());
+        page.insertTuple(Utility.getHeapTuple(value, 2));
+        return page;
+    }
+
+    /**
+     * Unit test for HeapFile.writePages(): pages given out of order, in
+     * several runs, land where they belong.
+     */
+    @Test public void writePages() throws Exception {
+        List<Page> pages = new ArrayList<Page>();
+        for (int pgNo : new int[] {2, 0, 1}) {
+            pages.add(pageWith(pgNo, pgNo));
+        }
+        empty.writePages(pages);
+        assertEquals(3, empty.numPages());
+
+        pages.clear();
+        pages.add(pageWith(3, 13));
+        pages.add(pageWith(0, 10));
+        empty.writePages(pages);
+        assertEquals(4, empty.numPages());
+        for (int pgNo = 0; pgNo < 4; ++pgNo) {
+            HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), pgNo));
+            Tuple t = page.iterator().next();
+            assertEquals(pgNo == 1 || pgNo == 2 ? pgNo : 10 + pgNo,
+                    ((IntField) t.getField(0)).getValue());
+        }
+    }
+
+    /** A run must not start past the end of the file. */
+    @Test(expected = IllegalArgumentException.class)
+    public void writePagesPastEnd() throws Exception {
+        empty.writePages(Arrays.<Page>asList(pageWith(empty.numPages() + 1, 1)));
+    }
+
+    /**
+     * The page count follows the writes through the file's channel, which
+     * is opened again after it was closed.
+     */
+    @Test public void writePageAfterClose() throws Exception {
+        empty.writePage(pageWith(0, 7));
+        assertEquals(1, empty.numPages());
+        assertEquals(BufferPool.getPageSize(), empty.getFile().length());
+
+        empty.close();
+        empty.writePage(pageWith(1, 8));
+        assertEquals(2, empty.numPages());
+        HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 1));
+        assertEquals(8, ((IntField) page.iterator().next().getField(0)).getValue());
+    }
+
+    /**
+     * A thread whose interrupt status is set still reads and writes pages,
+     * and keeps its status.
+     */
+    @Test public void interruptedIo() throws Exception {
+        empty.writePage(pageWith(0, 7));
+        Thread.currentThread().interrupt();
+        try {
+            empty.writePages(Arrays.<Page>asList(pageWith(1, 8), pageWith(2, 9)));
+            HeapPage page = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), 0));
+            assertEquals(7, firstValue(page));
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(9, firstValue((HeapPage) empty.readPage(new HeapPageId(empty.getId(), 2))));
+    }
+
+    /**
+     * Insertions go straight to a page with room, without locking the full
+     * pages before it, and reuse the room deletions leave.
+     */
+    @Test public void freeSpaceMap() throws Exception {
+        for (int i = 0; i < 2 * 504 + 1; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+        tid = new TransactionId();
+        HeapPageId p0 = new HeapPageId(empty.getId(), 0);
+        HeapPageId p2 = new HeapPageId(empty.getId(), 2);
+
+        Page page = empty.insertTuple(tid, Utility.getHeapTuple(7, 2)).get(0);
+        assertEquals(p2, page.getId());
+        assertFalse(Database.getBufferPool().holdsLock(tid, p0));
+
+        Tuple victim = ((HeapPage) Database.getBufferPool()
+                .getPage(tid, p0, Permissions.READ_ONLY)).iterator().next();
+        empty.deleteTuple(tid, victim);
+        page = empty.insertTuple(tid, Utility.getHeapTuple(8, 2)).get(0);
+        assertEquals(p0, page.getId());
+        assertEquals(3, empty.numPages());
+    }
+
+    /**
+     * The room an aborted insertion took, under locking or optimistically,
+     * is offered again rather than a new page appended.
+     */
+    @Test public void freeSpaceAfterAbort() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < 504; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        HeapPageId p0 = new HeapPageId(empty.getId(), 0);
+        Tuple victim = ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).iterator().next();
+        empty.deleteTuple(tid, victim);
+        bp.transactionComplete(tid);
+
+        tid = new TransactionId();
+        empty.insertTuple(tid, Utility.getHeapTuple(7, 2));
+        bp.transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        bp.beginOptimistic(tid);
+        empty.insertTuple(tid, Utility.getHeapTuple(8, 2));
+        bp.transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        Page page = empty.insertTuple(tid, Utility.getHeapTuple(9, 2)).get(0);
+        assertEquals(p0, page.getId());
+        assertEquals(1, empty.numPages());
+    }
+
+    private static int firstValue(HeapPage page) {
+        return ((IntField) page.iterator().next().getField(0)).getValue();
+    }
+
+    /**
+     * A mapped file reads its pages as views of the mapping, which follows
+     * the file as it grows; modifying a page copies it and leaves the file
+     * alone.
+     */
+    @Test public void mappedFile() throws Exception {
+        empty.writePage(pageWith(0, 7));
+        HeapFile mapped = new HeapFile(empty.getFile(), empty.getTupleDesc(), true);
+        HeapPageId pid = new HeapPageId(mapped.getId(), 0);
+        HeapPage page = (HeapPage) mapped.readPage(pid);
+        assertTrue(page.isMapped());
+        assertEquals(7, firstValue(page));
+
+        mapped.writePage(pageWith(1, 8));
+        HeapPage grown = (HeapPage) mapped.readPage(new HeapPageId(mapped.getId(), 1));
+        assertTrue(grown.isMapped());
+        assertEquals(8, firstValue(grown));
+        assertEquals(7, firstValue(page));
+
+        int free = page.getNumEmptySlots();
+        page.insertTuple(Utility.getHeapTuple(9, 2));
+        assertFalse(page.isMapped());
+        assertEquals(free - 1, page.getNumEmptySlots());
+        HeapPage reread = (HeapPage) mapped.readPage(pid);
+        assertEquals(free, reread.getNumEmptySlots());
+        assertEquals(free, page.getBeforeImage().getNumEmptySlots());
+
+        // writes go to the page cache the mapping shows
+        mapped.writePage(pageWith(0, 10));
+        assertEquals(10, firstValue(reread));
+    }
+
     /**
      * JUnit suite target
      */
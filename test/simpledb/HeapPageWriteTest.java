@@ -1,9 +1,13 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedList;
 
@@ -126,6 +130,122 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * A page kept in a ByteBuffer frame decodes and encodes the same data
+     * as one materialized on the heap.
+     */
+    @Test public void frameBackedPage() throws Exception {
+        HeapPage heap = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        ByteBuffer frame = ByteBuffer.allocateDirect(BufferPool.getPageSize());
+        frame.put(HeapPageReadTest.EXAMPLE_DATA).clear();
+        HeapPage direct = new HeapPage(pid, frame,
+                ByteBuffer.allocateDirect(BufferPool.getPageSize()));
+
+        Iterator<Tuple> it = heap.iterator(), jt = direct.iterator();
+        while (it.hasNext()) {
+            assertTrue(TestUtil.compareTuples(it.next(), jt.next()));
+        }
+        assertFalse(jt.hasNext());
+
+        Tuple victim = direct.iterator().next();
+        heap.deleteTuple(heap.iterator().next());
+        direct.deleteTuple(victim);
+        heap.insertTuple(Utility.getHeapTuple(7, 2));
+        direct.insertTuple(Utility.getHeapTuple(7, 2));
+        assertArrayEquals(heap.getPageData(), direct.getPageData());
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA,
+                direct.getBeforeImage().getPageData());
+
+        // leaving the frame keeps the page and its before image intact
+        direct.detach();
+        frame.put(new byte[BufferPool.getPageSize()]);
+        assertArrayEquals(heap.getPageData(), direct.getPageData());
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA,
+                direct.getBeforeImage().getPageData());
+    }
+
+    /**
+     * The before image is the page as of the last setBeforeImage(), however
+     * many modifications followed.
+     */
+    @Test public void beforeImage() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        page.insertTuple(Utility.getHeapTuple(8, 2));
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+
+        byte[] flushed = page.getPageData();
+        page.setBeforeImage();
+        assertArrayEquals(flushed, page.getBeforeImage().getPageData());
+        page.deleteTuple(page.iterator().next());
+        assertArrayEquals(flushed, page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * A page changed after the image to write was taken stays dirty once
+     * the image is written; an unchanged one becomes clean.
+     */
+    @Test public void markWritten() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        page.insertTuple(Utility.getHeapTuple(7, 2));
+        page.markDirty(true, tid);
+
+        HeapPage image = page.writeImage();
+        assertEquals(tid, image.isDirty());
+        page.insertTuple(Utility.getHeapTuple(8, 2));
+        page.markWritten(image);
+        assertEquals(tid, page.isDirty());
+        assertEquals(page.getNumEmptySlots() + 1, image.getNumEmptySlots());
+
+        image = page.writeImage();
+        page.markWritten(image);
+        assertNull(page.isDirty());
+        assertArrayEquals(page.getPageData(), image.getPageData());
+    }
+
+    /**
+     * A page read while another thread keeps changing it is read whole,
+     * either with the tuple inserted or without it.
+     */
+    @Test public void latchedReads() throws Exception {
+        final HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        final Tuple t = Utility.getHeapTuple(7, 2);
+        page.insertTuple(t);
+        int slot = t.getRecordId().tupleno();
+        page.deleteTuple(t);
+
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    while (!isInterrupted()) {
+                        page.insertTuple(t);
+                        page.deleteTuple(t);
+                    }
+                } catch (DbException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        try {
+            for (int i = 0; i < 2000; ++i) {
+                Iterator<Tuple> it = new HeapPage(pid, page.getPageData()).iterator();
+                while (it.hasNext()) {
+                    Tuple tup = it.next();
+                    if (tup.getRecordId().tupleno() == slot) {
+                        assertTrue(TestUtil.compareTuples(t, tup));
+                    }
+                }
+            }
+        } finally {
+            writer.interrupt();
+            writer.join();
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -3,7 +3,9 @@ package simpledb;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
 public class LockingTest extends TestUtil.CreateHeapFile {
@@ -186,6 +188,163 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     bp.getPage(tid1, p1, Permissions.READ_WRITE);
   }
 
+  /**
+   * Unit test for BufferPool.getPage() assuming locking.
+   * A lock is kept while its page is evicted, and released on completion.
+   */
+  @Test public void lockSurvivesEviction() throws Exception {
+    bp = Database.resetBufferPool(1);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid2, p1, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid1, p0));
+    grabLock(tid2, p0, Permissions.READ_WRITE, false);
+
+    bp.transactionComplete(tid1);
+    assertFalse(bp.holdsLock(tid1, p0));
+    grabLock(tid2, p0, Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * Unit test for intention locks.
+   * Write locks on different pages of one table do not conflict, but a
+   * lock on the whole table conflicts with both.
+   */
+  @Test public void intentionLocks() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    bp.getPage(tid2, p1, Permissions.READ_WRITE);
+    assertEquals(LockMode.IX, bp.lock.getMode(tid1, empty.getId()));
+    assertEquals(LockMode.IX, bp.lock.getMode(tid2, empty.getId()));
+    assertEquals(LockMode.X, bp.lock.getMode(tid1, p0));
+    grabLock(tid2, p0, Permissions.READ_ONLY, false);
+  }
+
+  /**
+   * Unit test for the table locks of scans.
+   * A scan locks its table S, which becomes SIX once the transaction
+   * writes a page of it; readers of the table go on, writers wait.
+   */
+  @Test public void scanLocksTable() throws Exception {
+    DbFileIterator it = empty.iterator(tid1);
+    it.open();
+    assertEquals(LockMode.S, bp.lock.getMode(tid1, empty.getId()));
+    grabLock(tid2, p1, Permissions.READ_ONLY, true);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    assertEquals(LockMode.SIX, bp.lock.getMode(tid1, empty.getId()));
+    assertEquals(LockMode.X, bp.lock.getMode(tid1, p0));
+    it.close();
+    grabLock(tid2, p2, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for BufferPool.lockTable().
+   * A table lock covers the pages of the table.
+   */
+  @Test public void tableLockCoversPages() throws Exception {
+    bp.lockTable(tid1, empty.getId(), Permissions.READ_ONLY);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    assertTrue(bp.holdsLock(tid1, p1));
+    assertNull(bp.lock.getMode(tid1, p0));
+    grabLock(tid2, p0, Permissions.READ_ONLY, true);
+    grabLock(tid2, p1, Permissions.READ_WRITE, false);
+  }
+
+  /**
+   * Unit test for lock escalation.
+   * Past the threshold, the page locks of a transaction are traded for a
+   * lock on their table.
+   */
+  @Test public void lockEscalation() throws Exception {
+    bp.lock.setEscalationThreshold(2);
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    assertEquals(LockMode.IS, bp.lock.getMode(tid1, empty.getId()));
+    bp.getPage(tid1, p2, Permissions.READ_ONLY);
+    assertEquals(LockMode.S, bp.lock.getMode(tid1, empty.getId()));
+    assertNull(bp.lock.getMode(tid1, p0));
+    assertEquals(1, bp.lock.getEscalations());
+    assertTrue(bp.holdsLock(tid1, p0));
+    assertEquals(3, bp.lock.getLockedPages(tid1).size());
+    grabLock(tid2, p0, Permissions.READ_WRITE, false);
+
+    bp.transactionComplete(tid1);
+    assertFalse(bp.holdsLock(tid1, p2));
+    grabLock(tid2, p0, Permissions.READ_WRITE, true);
+  }
+
+  /**
+   * Unit test for the lock wait queues.
+   * Waiters are granted the lock in the order they asked for it, the
+   * readers at the head of the queue together.
+   */
+  @Test public void waitersGrantedInOrder() throws Exception {
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    Permissions[] perms = {Permissions.READ_ONLY, Permissions.READ_ONLY,
+        Permissions.READ_WRITE, Permissions.READ_ONLY};
+    TestUtil.LockGrabber[] waiters = new TestUtil.LockGrabber[perms.length];
+    for (int i = 0; i < waiters.length; ++i) {
+      waiters[i] = new TestUtil.LockGrabber(new TransactionId(), p0, perms[i]);
+      waiters[i].start();
+      Thread.sleep(TIMEOUT);
+      assertFalse(waiters[i].acquired());
+    }
+
+    bp.transactionComplete(tid1);
+    Thread.sleep(TIMEOUT);
+    assertTrue(waiters[0].acquired());
+    assertTrue(waiters[1].acquired());
+    assertFalse(waiters[2].acquired());
+    assertFalse(waiters[3].acquired());
+    for (TestUtil.LockGrabber waiter : waiters) {
+      waiter.stop();
+    }
+  }
+
+  /**
+   * Unit test for LockStats.
+   * Waits are counted against the page waited for, and the transactions
+   * waiting are listed until they get their lock.
+   */
+  @Test public void lockStats() throws Exception {
+    LockStats stats = bp.getLockStats();
+    bp.getPage(tid1, p0, Permissions.READ_ONLY);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE);
+    assertEquals(2, stats.getUpgrades());   // the page from S to X, its table from IS to IX
+
+    TestUtil.LockGrabber waiter = new TestUtil.LockGrabber(tid2, p0, Permissions.READ_ONLY);
+    waiter.start();
+    Thread.sleep(TIMEOUT);
+    assertEquals(1, stats.getWaiters().length);
+    assertTrue(stats.getWaiters()[0].startsWith("transaction " + tid2.getId() + " waits for S on " + p0));
+    assertEquals(0, stats.getWaits());
+
+    bp.transactionComplete(tid1);
+    Thread.sleep(TIMEOUT);
+    assertTrue(waiter.acquired());
+    assertEquals(0, stats.getWaiters().length);
+    assertEquals(1, stats.getWaits());
+    String[] top = stats.topContended(10);
+    assertEquals(1, top.length);
+    assertTrue(top[0].startsWith(p0 + ": 1 waits"));
+    waiter.stop();
+  }
+
+  /**
+   * Unit test for LockStats.
+   * Only the resources waited for longest are counted apart, however many
+   * are locked.
+   */
+  @Test public void lockStatsBounded() throws Exception {
+    LockStats stats = bp.getLockStats();
+    stats.waited(p0, 1000000);
+    for (int i = 0; i < 2 * LockStats.TRACKED_RESOURCES; ++i) {
+      stats.waited(new HeapPageId(-1, i), 1000);
+    }
+    String[] top = stats.topContended(Integer.MAX_VALUE);
+    assertTrue(top.length <= LockStats.TRACKED_RESOURCES);
+    assertTrue(top[0].startsWith(p0 + ": 1 waits"));
+    assertEquals(2 * LockStats.TRACKED_RESOURCES + 1, stats.getWaits());
+  }
+
   /**
    * JUnit suite target
    */
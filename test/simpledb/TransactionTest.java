@@ -4,6 +4,9 @@ import java.util.*;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import junit.framework.JUnit4TestAdapter;
 
 public class TransactionTest extends TestUtil.CreateHeapFile {
@@ -112,6 +115,133 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
     testTransactionComplete(false);
   }
 
+  /**
+   * Unit test for BufferPool.beginSnapshot().
+   * A snapshot reads the pages as of the last commit before it began,
+   * without waiting for the locks of writers.
+   */
+  @Test public void snapshotReads() throws Exception {
+    bp.beginSnapshot(tid1);
+    HeapPage p = (HeapPage) bp.getPage(tid2, p2, Permissions.READ_WRITE);
+    int free = p.getNumEmptySlots();
+    p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    p.markDirty(true, tid2);
+
+    assertEquals(free, ((HeapPage) bp.getPage(tid1, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+    bp.transactionComplete(tid2, true);
+    assertEquals(free, ((HeapPage) bp.getPage(tid1, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+
+    TransactionId tid3 = new TransactionId();
+    bp.beginSnapshot(tid3);
+    assertEquals(free - 1, ((HeapPage) bp.getPage(tid3, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+    try {
+      bp.getPage(tid3, p2, Permissions.READ_WRITE);
+      fail("snapshots are read-only; expected DbException");
+    } catch (DbException e) {
+      // expected
+    }
+    bp.transactionComplete(tid3);
+    bp.transactionComplete(tid1);
+    assertFalse(bp.holdsLock(tid1, p2));
+  }
+
+  /**
+   * Unit test for BufferPool.beginOptimistic() and BufferPool.validate().
+   * Optimistic writes stay private until validation, which fails once the
+   * pages read were committed by someone else.
+   */
+  @Test public void optimisticValidation() throws Exception {
+    bp.beginOptimistic(tid1);
+    bp.beginOptimistic(tid2);
+    int free = ((HeapPage) bp.getPage(tid2, p2, Permissions.READ_ONLY)).getNumEmptySlots();
+    HeapPage p = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_WRITE);
+    p.insertTuple(Utility.getHeapTuple(new int[] { 6, 830 }));
+    p.markDirty(true, tid1);
+    assertFalse(bp.holdsLock(tid1, p2));
+
+    TransactionId tid3 = new TransactionId();
+    assertEquals(free, ((HeapPage) bp.getPage(tid3, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+    bp.transactionComplete(tid3);
+
+    bp.validate(tid1);
+    assertTrue(bp.holdsLock(tid1, p2));
+    bp.transactionComplete(tid1, true);
+    assertEquals(free - 1, ((HeapPage) bp.getPage(tid3, p2, Permissions.READ_ONLY)).getNumEmptySlots());
+    bp.transactionComplete(tid3);
+
+    try {
+      bp.validate(tid2);
+      fail("p2 was committed since tid2 read it; expected TransactionAbortedException");
+    } catch (TransactionAbortedException e) {
+      // expected
+    }
+    bp.transactionComplete(tid2, false);
+    assertFalse(bp.holdsLock(tid2, p2));
+  }
+
+  /**
+   * Unit test for BufferPool.beginSnapshot() and BufferPool.setSteal().
+   * A page stolen by an uncommitted writer must not be read back as the
+   * last committed version, so snapshots and STEAL exclude each other.
+   */
+  @Test public void snapshotsExcludeSteal() throws Exception {
+    bp.setSteal(true);
+    try {
+      bp.beginSnapshot(tid1);
+      fail("STEAL is on; expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try {
+      bp.beginOptimistic(tid1);
+      fail("STEAL is on; expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    bp.setSteal(false);
+
+    bp.beginSnapshot(tid1);
+    try {
+      bp.setSteal(true);
+      fail("a snapshot is running; expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    bp.transactionComplete(tid1);
+    bp.setSteal(true);
+    bp.setSteal(false);
+  }
+
+  /**
+   * Unit test for BufferPool.beginSnapshot() after BufferPool.setSteal(false).
+   * A transaction whose pages were stolen left uncommitted data on disk, so
+   * snapshots cannot begin until it completes.
+   */
+  @Test public void snapshotsWaitForStolenPages() throws Exception {
+    bp = Database.resetBufferPool(1);
+    bp.setSteal(true);
+    bp.getPage(tid1, p0, Permissions.READ_WRITE).markDirty(true, tid1);
+    bp.getPage(tid1, p1, Permissions.READ_ONLY);
+    bp.setSteal(false);
+
+    TransactionId tid3 = new TransactionId();
+    try {
+      bp.beginSnapshot(tid3);
+      fail("p0 was stolen from tid1; expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    try {
+      bp.beginOptimistic(tid3);
+      fail("p0 was stolen from tid1; expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    bp.transactionComplete(tid1);
+    bp.beginSnapshot(tid3);
+    bp.transactionComplete(tid3);
+  }
+
   /**
    * JUnit suite target
    */
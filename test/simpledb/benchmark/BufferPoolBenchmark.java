@@ -0,0 +1,78 @@
+package simpledb.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Measures BufferPool.getPage() throughput on a fully resident working set
+ * as the pool grows. With an O(1) page table the per-call cost should stay
+ * flat instead of growing linearly with the number of frames.
+ *
+ * Usage: ant benchmark -Dbench=BufferPoolBenchmark [-Dargs="ops size..."]
+ */
+public class BufferPoolBenchmark {
+    private static final int DEFAULT_OPS = 1000000;
+    private static final int[] DEFAULT_SIZES = {64, 256, 1024, 4096, 16384};
+
+    public static void main(String[] args) throws Exception {
+        int ops = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_OPS;
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; ++i) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("pages\tops/sec\tns/op");
+        for (int numPages : sizes) {
+            double opsPerSec = run(numPages, ops);
+            System.out.printf("%d\t%.0f\t%.1f%n", numPages, opsPerSec, 1e9 / opsPerSec);
+        }
+    }
+
+    /** Returns getPage() calls per second against a pool of numPages frames. */
+    static double run(int numPages, int ops)
+            throws IOException, DbException, TransactionAbortedException {
+        Database.reset();
+        HeapFile f = createEmptyPages(numPages);
+        BufferPool bp = Database.resetBufferPool(numPages);
+        TransactionId tid = new TransactionId();
+        PageId[] pids = new PageId[numPages];
+
+        for (int i = 0; i < numPages; ++i) {
+            pids[i] = new HeapPageId(f.getId(), i);
+            bp.getPage(tid, pids[i], Permissions.READ_ONLY);
+        }
+
+        Random r = new Random(numPages);
+        for (int i = 0; i < ops / 10; ++i) {   // warm up the JIT
+            bp.getPage(tid, pids[r.nextInt(numPages)], Permissions.READ_ONLY);
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < ops; ++i) {
+            bp.getPage(tid, pids[r.nextInt(numPages)], Permissions.READ_ONLY);
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        bp.transactionComplete(tid);
+        return ops * 1e9 / elapsed;
+    }
+
+    /** Creates a heap file of numPages empty pages and adds it to the catalog. */
+    static HeapFile createEmptyPages(int numPages) throws IOException {
+        File temp = File.createTempFile("bench", ".dat");
+        temp.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            raf.setLength((long) numPages * BufferPool.getPageSize());
+        } finally {
+            raf.close();
+        }
+        return Utility.openHeapFile(2, temp);
+    }
+}
@@ -0,0 +1,76 @@
+package simpledb.benchmark;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import simpledb.*;
+
+/**
+ * Measures how many pages per second a sequential scan reads from its file
+ * when none of them are cached by the buffer pool, with frames on the heap
+ * and off heap. Every scan starts from an empty pool, so each page costs
+ * a read from the file and a decode; the pages stay in the cache of the
+ * operating system, so the cost of the file I/O path itself shows.
+ *
+ * Usage: ant benchmark -Dbench=ColdScanBenchmark [-Dargs="scans pages..."]
+ */
+public class ColdScanBenchmark {
+    private static final int DEFAULT_SCANS = 10;
+    private static final int[] DEFAULT_SIZES = {256, 1024, 4096};
+
+    public static void main(String[] args) throws Exception {
+        int scans = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SCANS;
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; ++i) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("pages\tframes\tpages/sec\tus/page");
+        for (int numPages : sizes) {
+            for (boolean offHeap : new boolean[] { false, true }) {
+                run(numPages, 1, offHeap);   // warm up the JIT
+                double pagesPerSec = run(numPages, scans, offHeap);
+                System.out.printf("%d\t%s\t%.0f\t\t%.1f%n", numPages,
+                        offHeap ? "direct" : "heap", pagesPerSec, 1e6 / pagesPerSec);
+            }
+        }
+    }
+
+    /** Returns the pages per second read by scans cold scans of a table of numPages pages. */
+    static double run(int numPages, int scans, boolean offHeap) throws Exception {
+        Database.reset();
+        HeapFile f = createFullPages(numPages);
+        long elapsed = 0;
+
+        for (int i = 0; i < scans; ++i) {
+            Database.resetBufferPool(new BufferPool(BufferPool.DEFAULT_PAGES,
+                    new ClockPolicy(), offHeap));
+            long begin = System.nanoTime();
+            ScanAllocationBenchmark.scan(f);
+            elapsed += System.nanoTime() - begin;
+        }
+        return (double) numPages * scans * 1e9 / elapsed;
+    }
+
+    /** Creates a heap file of numPages full pages and adds it to the catalog. */
+    static HeapFile createFullPages(int numPages) throws IOException, DbException {
+        HeapFile f = BufferPoolBenchmark.createEmptyPages(numPages);
+        HeapPage page = new HeapPage(new HeapPageId(f.getId(), 0), HeapPage.createEmptyPageData());
+        for (int i = page.getNumEmptySlots(); i > 0; --i) {
+            page.insertTuple(Utility.getHeapTuple(i, 2));
+        }
+        byte[] data = page.getPageData();
+        RandomAccessFile raf = new RandomAccessFile(f.getFile(), "rw");
+        try {
+            for (int i = 0; i < numPages; ++i) {
+                raf.write(data);
+            }
+        } finally {
+            raf.close();
+        }
+        return f;
+    }
+}
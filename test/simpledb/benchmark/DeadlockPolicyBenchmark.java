@@ -0,0 +1,110 @@
+package simpledb.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Compares the deadlock policies of the lock manager on short transactions
+ * that lock a few of a small set of hot pages in random order, each for
+ * writing with probability one half. An aborted transaction is retried with
+ * the same TransactionId, so that it keeps its age, until it commits.
+ * Reports committed transactions per second and aborts per commit.
+ *
+ * Usage: ant benchmark -Dbench=DeadlockPolicyBenchmark [-Dargs="threads pages locks xactions"]
+ */
+public class DeadlockPolicyBenchmark {
+    private static final int DEFAULT_PAGES = 8;
+    private static final int DEFAULT_LOCKS = 3;
+    private static final int DEFAULT_XACTIONS = 2000;
+    private static final long HOLD_NANOS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        int numThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : 2 * Runtime.getRuntime().availableProcessors();
+        int numPages = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PAGES;
+        int numLocks = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_LOCKS;
+        int xactions = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_XACTIONS;
+
+        System.out.println("policy\t\tcommits/sec\taborts/commit");
+        for (DeadlockPolicy policy : DeadlockPolicy.values()) {
+            run(policy, numThreads, numPages, numLocks, xactions / 10);   // warm up the JIT
+            AtomicLong aborts = new AtomicLong();
+            double throughput = run(policy, numThreads, numPages, numLocks, xactions, aborts);
+            System.out.printf("%-10s\t%.0f\t\t%.3f%n", policy, throughput,
+                    (double) aborts.get() / ((long) numThreads * xactions));
+        }
+    }
+
+    static double run(DeadlockPolicy policy, int numThreads, int numPages, int numLocks,
+            int xactions) throws Exception {
+        return run(policy, numThreads, numPages, numLocks, xactions, new AtomicLong());
+    }
+
+    /** Runs xactions transactions to commit on each thread and returns commits per second. */
+    static double run(DeadlockPolicy policy, int numThreads, int numPages, final int numLocks,
+            final int xactions, final AtomicLong aborts) throws Exception {
+        Database.reset();
+        HeapFile f = BufferPoolBenchmark.createEmptyPages(numPages);
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.setDeadlockPolicy(policy);
+        final PageId[] pids = new PageId[numPages];
+        TransactionId loader = new TransactionId();
+        for (int i = 0; i < numPages; ++i) {
+            pids[i] = new HeapPageId(f.getId(), i);
+            bp.getPage(loader, pids[i], Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(loader);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        for (int t = 0; t < numThreads; ++t) {
+            final Random r = new Random(t);
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < xactions; ++i) {
+                            TransactionId tid = new TransactionId();
+                            while (!runTransaction(bp, tid, pids, numLocks, r)) {
+                                aborts.incrementAndGet();
+                                bp.transactionComplete(tid, false);
+                            }
+                            bp.transactionComplete(tid);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return (double) numThreads * xactions * 1e9 / elapsed;
+    }
+
+    /** Locks numLocks random pages, holding each for a while; returns false if aborted. */
+    static boolean runTransaction(BufferPool bp, TransactionId tid, PageId[] pids,
+            int numLocks, Random r) throws DbException {
+        try {
+            for (int i = 0; i < numLocks; ++i) {
+                Permissions perm = r.nextBoolean() ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+                bp.getPage(tid, pids[r.nextInt(pids.length)], perm);
+                long begin = System.nanoTime();
+                while (System.nanoTime() - begin < HOLD_NANOS) {
+                    // hold the lock
+                }
+            }
+            return true;
+        } catch (TransactionAbortedException e) {
+            return false;
+        }
+    }
+}
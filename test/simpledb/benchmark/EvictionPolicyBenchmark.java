@@ -0,0 +1,131 @@
+package simpledb.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Replays a page-access trace against every eviction policy and reports the
+ * hit ratio for a range of pool sizes. Traces are recorded with
+ * BufferPool.setAccessTrace(); without a trace file, a synthetic OLTP-style
+ * trace (skewed lookups on a small table, interrupted by full scans of a
+ * large one) is generated.
+ *
+ * Usage: ant benchmark -Dbench=EvictionPolicyBenchmark [-Dargs="trace size..."]
+ */
+public class EvictionPolicyBenchmark {
+    private static final int[] DEFAULT_SIZES = {16, 64, 256, 1024};
+    private static final String[] POLICIES = {"LRU", "CLOCK", "LRU-2", "2Q"};
+
+    public static void main(String[] args) throws IOException {
+        List<PageId> trace = args.length > 0 ? readTrace(args[0]) : syntheticTrace();
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; ++i) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.print("pages");
+        for (String name : POLICIES) {
+            System.out.print("\t" + name);
+        }
+        System.out.println();
+        for (int numPages : sizes) {
+            System.out.print(numPages);
+            for (String name : POLICIES) {
+                System.out.printf("\t%.4f", hitRatio(trace, numPages, create(name)));
+            }
+            System.out.println();
+        }
+    }
+
+    static EvictionPolicy create(String name) {
+        if (name.equals("LRU")) return new LruPolicy();
+        if (name.equals("CLOCK")) return new ClockPolicy();
+        if (name.equals("LRU-2")) return new LruKPolicy(2);
+        if (name.equals("2Q")) return new TwoQueuePolicy();
+        throw new IllegalArgumentException("unknown policy " + name);
+    }
+
+    /** Simulates a pool of numPages frames in which every frame is evictable. */
+    static double hitRatio(List<PageId> trace, int numPages, EvictionPolicy policy) {
+        Map<PageId, Integer> resident = new HashMap<PageId, Integer>();
+        PageId[] frames = new PageId[numPages];
+        Deque<Integer> free = new ArrayDeque<Integer>();
+        EvictionPolicy.Candidates all = new EvictionPolicy.Candidates() {
+            public boolean isEvictable(int frame) {
+                return true;
+            }
+        };
+        for (int i = 0; i < numPages; ++i) {
+            free.add(i);
+        }
+
+        long hits = 0;
+        for (PageId pid : trace) {
+            Integer frame = resident.get(pid);
+            if (frame != null) {
+                hits++;
+                policy.access(frame);
+                continue;
+            }
+            if (free.isEmpty()) {
+                int victim = policy.victim(all);
+                resident.remove(frames[victim]);
+                free.add(victim);
+            }
+            frame = free.poll();
+            frames[frame] = pid;
+            resident.put(pid, frame);
+            policy.admit(frame, pid);
+        }
+        return (double) hits / trace.size();
+    }
+
+    /** Reads a trace of "tableId pageNumber" lines. */
+    static List<PageId> readTrace(String path) throws IOException {
+        List<PageId> trace = new ArrayList<PageId>();
+        BufferedReader in = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length == 2) {
+                    trace.add(new HeapPageId(Integer.parseInt(parts[0]),
+                            Integer.parseInt(parts[1])));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return trace;
+    }
+
+    /** Skewed lookups on a 512-page table, interrupted by a 4096-page scan every 20000 lookups. */
+    static List<PageId> syntheticTrace() {
+        List<PageId> trace = new ArrayList<PageId>();
+        Random r = new Random(6830);
+        for (int round = 0; round < 10; ++round) {
+            for (int i = 0; i < 20000; ++i) {
+                // squaring a uniform variate skews requests towards low page numbers
+                double u = r.nextDouble();
+                trace.add(new HeapPageId(1, (int) (u * u * 512)));
+            }
+            for (int i = 0; i < 4096; ++i) {
+                trace.add(new HeapPageId(2, i));
+            }
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import simpledb.*;
+
+/**
+ * Measures how long transactions wait for page locks when many threads
+ * fight over a few hot pages. Each transaction locks one page, for writing
+ * with the given probability, holds it for a few microseconds and commits.
+ * Reports the distribution of the time spent in getPage() and the number
+ * of transactions per second; the tail shows how fairly waiters are served.
+ *
+ * Usage: ant benchmark -Dbench=LockContentionBenchmark [-Dargs="threads pages xactions writes"]
+ */
+public class LockContentionBenchmark {
+    private static final int DEFAULT_PAGES = 4;
+    private static final int DEFAULT_XACTIONS = 5000;
+    private static final double DEFAULT_WRITES = 0.2;
+    private static final long HOLD_NANOS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        int numThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : 2 * Runtime.getRuntime().availableProcessors();
+        int numPages = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PAGES;
+        int xactions = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_XACTIONS;
+        double writes = args.length > 3 ? Double.parseDouble(args[3]) : DEFAULT_WRITES;
+
+        run(numThreads, numPages, xactions / 10, writes);   // warm up the JIT
+        long[] waits = new long[numThreads * xactions];
+        double throughput = run(numThreads, numPages, xactions, writes, waits);
+        Arrays.sort(waits);
+
+        System.out.println("threads\tpages\twrites\tp50 us\tp99 us\tmax us\txactions/sec");
+        System.out.printf("%d\t%d\t%.2f\t%.1f\t%.1f\t%.1f\t%.0f%n", numThreads, numPages, writes,
+                percentile(waits, 0.50) / 1e3, percentile(waits, 0.99) / 1e3,
+                waits[waits.length - 1] / 1e3, throughput);
+    }
+
+    static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+
+    static double run(int numThreads, int numPages, int xactions, double writes)
+            throws Exception {
+        return run(numThreads, numPages, xactions, writes, new long[numThreads * xactions]);
+    }
+
+    /**
+     * Runs xactions transactions on each thread, recording the lock wait of
+     * each one in waits, and returns transactions per second.
+     */
+    static double run(int numThreads, int numPages, final int xactions, final double writes,
+            final long[] waits) throws Exception {
+        Database.reset();
+        HeapFile f = BufferPoolBenchmark.createEmptyPages(numPages);
+        final BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        final PageId[] pids = new PageId[numPages];
+        TransactionId loader = new TransactionId();
+        for (int i = 0; i < numPages; ++i) {
+            pids[i] = new HeapPageId(f.getId(), i);
+            bp.getPage(loader, pids[i], Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(loader);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        for (int t = 0; t < numThreads; ++t) {
+            final Random r = new Random(t);
+            final int offset = t * xactions;
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < xactions; ++i) {
+                            TransactionId tid = new TransactionId();
+                            Permissions perm = r.nextDouble() < writes
+                                    ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+                            long begin = System.nanoTime();
+                            bp.getPage(tid, pids[r.nextInt(pids.length)], perm);
+                            waits[offset + i] = System.nanoTime() - begin;
+                            while (System.nanoTime() - begin < waits[offset + i] + HOLD_NANOS) {
+                                // hold the lock
+                            }
+                            bp.transactionComplete(tid);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return (double) numThreads * xactions * 1e9 / elapsed;
+    }
+}
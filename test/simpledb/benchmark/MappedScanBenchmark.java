@@ -0,0 +1,57 @@
+package simpledb.benchmark;
+
+import simpledb.*;
+
+/**
+ * Compares sequential scans of a table read through a memory mapping of
+ * its file with scans reading each page through the file channel. Every
+ * scan starts from an empty buffer pool, while the file stays in the cache
+ * of the operating system: a mapped page is a view of that cache, where a
+ * page read through the channel is copied out of it and decoded.
+ *
+ * Usage: ant benchmark -Dbench=MappedScanBenchmark [-Dargs="scans pages..."]
+ */
+public class MappedScanBenchmark {
+    private static final int DEFAULT_SCANS = 10;
+    private static final int[] DEFAULT_SIZES = {256, 1024, 4096};
+
+    public static void main(String[] args) throws Exception {
+        int scans = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SCANS;
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; ++i) {
+                sizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("pages\tfile\tpages/sec\tus/page");
+        for (int numPages : sizes) {
+            for (boolean mapped : new boolean[] { false, true }) {
+                run(numPages, 1, mapped);   // warm up the JIT
+                double pagesPerSec = run(numPages, scans, mapped);
+                System.out.printf("%d\t%s\t%.0f\t\t%.1f%n", numPages,
+                        mapped ? "mapped" : "channel", pagesPerSec, 1e6 / pagesPerSec);
+            }
+        }
+    }
+
+    /** Returns the pages per second read by scans cold scans of a table of numPages pages. */
+    static double run(int numPages, int scans, boolean mapped) throws Exception {
+        Database.reset();
+        HeapFile f = ColdScanBenchmark.createFullPages(numPages);
+        if (mapped) {
+            f = new HeapFile(f.getFile(), f.getTupleDesc(), true);
+            Database.getCatalog().addTable(f, "mapped");
+        }
+        long elapsed = 0;
+
+        for (int i = 0; i < scans; ++i) {
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            long begin = System.nanoTime();
+            ScanAllocationBenchmark.scan(f);
+            elapsed += System.nanoTime() - begin;
+        }
+        return (double) numPages * scans * 1e9 / elapsed;
+    }
+}
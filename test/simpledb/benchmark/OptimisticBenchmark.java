@@ -0,0 +1,122 @@
+package simpledb.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Compares optimistic concurrency control with two-phase locking on
+ * read-mostly transactions, which read a few random pages of a table and
+ * then write one, spinning for a while after every access. The smaller the
+ * table, the more the transactions conflict. An aborted transaction is
+ * retried with the same TransactionId until it commits. Reports committed
+ * transactions per second and aborts per commit of both modes for a range
+ * of table sizes.
+ *
+ * Usage: ant benchmark -Dbench=OptimisticBenchmark [-Dargs="threads reads xactions"]
+ */
+public class OptimisticBenchmark {
+    private static final int[] TABLE_PAGES = { 4, 16, 64, 256 };
+    private static final int DEFAULT_READS = 8;
+    private static final int DEFAULT_XACTIONS = 200;
+    private static final long HOLD_NANOS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        int numThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : 2 * Runtime.getRuntime().availableProcessors();
+        int numReads = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_READS;
+        int xactions = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_XACTIONS;
+
+        System.out.println("pages\tmode\tcommits/sec\taborts/commit");
+        for (int numPages : TABLE_PAGES) {
+            for (boolean optimistic : new boolean[] { false, true }) {
+                run(optimistic, numThreads, numPages, numReads, xactions / 10);   // warm up the JIT
+                AtomicLong aborts = new AtomicLong();
+                double throughput = run(optimistic, numThreads, numPages, numReads, xactions, aborts);
+                System.out.printf("%d\t%s\t%.0f\t\t%.3f%n", numPages, optimistic ? "OCC" : "2PL",
+                        throughput, (double) aborts.get() / ((long) numThreads * xactions));
+            }
+        }
+    }
+
+    static double run(boolean optimistic, int numThreads, int numPages, int numReads,
+            int xactions) throws Exception {
+        return run(optimistic, numThreads, numPages, numReads, xactions, new AtomicLong());
+    }
+
+    /** Runs xactions transactions to commit on each thread and returns commits per second. */
+    static double run(final boolean optimistic, int numThreads, int numPages, final int numReads,
+            final int xactions, final AtomicLong aborts) throws Exception {
+        Database.reset();
+        HeapFile f = BufferPoolBenchmark.createEmptyPages(numPages);
+        final BufferPool bp = Database.resetBufferPool(Math.max(numPages, BufferPool.DEFAULT_PAGES));
+        final PageId[] pids = new PageId[numPages];
+        TransactionId loader = new TransactionId();
+        for (int i = 0; i < numPages; ++i) {
+            pids[i] = new HeapPageId(f.getId(), i);
+            bp.getPage(loader, pids[i], Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(loader);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        for (int t = 0; t < numThreads; ++t) {
+            final Random r = new Random(t);
+            new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < xactions; ++i) {
+                            TransactionId tid = new TransactionId();
+                            while (!runTransaction(bp, tid, optimistic, pids, numReads, r)) {
+                                aborts.incrementAndGet();
+                                bp.transactionComplete(tid, false);
+                            }
+                            bp.transactionComplete(tid);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return (double) numThreads * xactions * 1e9 / elapsed;
+    }
+
+    /**
+     * Reads numReads random pages and writes one, holding each for a while,
+     * then validates if optimistic; returns false if aborted.
+     */
+    static boolean runTransaction(BufferPool bp, TransactionId tid, boolean optimistic,
+            PageId[] pids, int numReads, Random r) throws DbException {
+        try {
+            if (optimistic) {
+                bp.beginOptimistic(tid);
+            }
+            for (int i = 0; i <= numReads; ++i) {
+                Permissions perm = i < numReads ? Permissions.READ_ONLY : Permissions.READ_WRITE;
+                Page page = bp.getPage(tid, pids[r.nextInt(pids.length)], perm);
+                if (perm == Permissions.READ_WRITE) {
+                    page.markDirty(true, tid);
+                }
+                long begin = System.nanoTime();
+                while (System.nanoTime() - begin < HOLD_NANOS) {
+                    // hold the page
+                }
+            }
+            bp.validate(tid);
+            return true;
+        } catch (TransactionAbortedException e) {
+            return false;
+        }
+    }
+}
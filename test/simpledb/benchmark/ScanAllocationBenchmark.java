@@ -0,0 +1,53 @@
+package simpledb.benchmark;
+
+import java.lang.management.ManagementFactory;
+
+import simpledb.*;
+
+/**
+ * Measures the bytes allocated per page by a sequential scan of a table
+ * larger than the pool, so that every page is read from disk and decoded.
+ * Read-only pages should not pay for a copy of their before image.
+ *
+ * Usage: ant benchmark -Dbench=ScanAllocationBenchmark [-Dargs="pages scans"]
+ */
+public class ScanAllocationBenchmark {
+    private static final int DEFAULT_PAGES = 1024;
+    private static final int DEFAULT_SCANS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int numPages = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PAGES;
+        int scans = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SCANS;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long self = Thread.currentThread().getId();
+
+        Database.reset();
+        HeapFile f = BufferPoolBenchmark.createEmptyPages(numPages);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        scan(f);   // warm up the JIT
+
+        long allocated = threads.getThreadAllocatedBytes(self);
+        long begin = System.nanoTime();
+        for (int i = 0; i < scans; ++i) {
+            scan(f);
+        }
+        long elapsed = System.nanoTime() - begin;
+        allocated = threads.getThreadAllocatedBytes(self) - allocated;
+
+        System.out.println("pages\tbytes/page\tus/page");
+        System.out.printf("%d\t%d\t%.1f%n", numPages, allocated / ((long) numPages * scans),
+                elapsed / 1e3 / numPages / scans);
+    }
+
+    static void scan(HeapFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+}
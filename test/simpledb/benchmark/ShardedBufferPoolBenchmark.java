@@ -0,0 +1,92 @@
+package simpledb.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import simpledb.*;
+
+/**
+ * Measures BufferPool.getPage() throughput on a fully resident working set
+ * as the number of threads grows, for a pool in a single shard and for one
+ * split into a shard per processor. With a single latch the throughput
+ * flattens out at one thread's worth; with shards it should keep growing up
+ * to the number of cores.
+ *
+ * Usage: ant benchmark -Dbench=ShardedBufferPoolBenchmark [-Dargs="ops pages"]
+ */
+public class ShardedBufferPoolBenchmark {
+    private static final int DEFAULT_OPS = 1000000;
+    private static final int DEFAULT_PAGES = 1024;
+
+    public static void main(String[] args) throws Exception {
+        int ops = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_OPS;
+        int numPages = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PAGES;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] shardCounts = {1, Math.max(1, Math.min(cores, numPages / BufferPool.MIN_SHARD_PAGES))};
+
+        System.out.println("cores: " + cores + ", ops/sec per number of threads");
+        System.out.print("shards");
+        for (int threads = 1; threads <= 2 * cores; threads *= 2) {
+            System.out.print("\t" + threads);
+        }
+        System.out.println();
+        for (int numShards : shardCounts) {
+            System.out.print(numShards);
+            for (int threads = 1; threads <= 2 * cores; threads *= 2) {
+                System.out.printf("\t%.0f", run(numPages, numShards, threads, ops));
+            }
+            System.out.println();
+        }
+    }
+
+    /** Returns getPage() calls per second by all threads together. */
+    static double run(int numPages, int numShards, int numThreads, final int ops)
+            throws Exception {
+        Database.reset();
+        HeapFile f = BufferPoolBenchmark.createEmptyPages(numPages);
+        final BufferPool bp = Database.resetBufferPool(new BufferPool(numPages, numShards));
+        final PageId[] pids = new PageId[numPages];
+        for (int i = 0; i < numPages; ++i) {
+            pids[i] = new HeapPageId(f.getId(), i);
+        }
+
+        final CountDownLatch ready = new CountDownLatch(numThreads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        final int opsPerThread = ops / numThreads;
+        for (int t = 0; t < numThreads; ++t) {
+            final Random r = new Random(t);
+            new Thread() {
+                public void run() {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        // take every shared lock up front, then warm up the JIT
+                        for (PageId pid : pids) {
+                            bp.getPage(tid, pid, Permissions.READ_ONLY);
+                        }
+                        for (int i = 0; i < opsPerThread / 10; ++i) {
+                            bp.getPage(tid, pids[r.nextInt(pids.length)], Permissions.READ_ONLY);
+                        }
+                        ready.countDown();
+                        start.await();
+                        for (int i = 0; i < opsPerThread; ++i) {
+                            bp.getPage(tid, pids[r.nextInt(pids.length)], Permissions.READ_ONLY);
+                        }
+                        bp.transactionComplete(tid);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        return (double) opsPerThread * numThreads * 1e9 / elapsed;
+    }
+}
@@ -0,0 +1,205 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import simpledb.*;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StealTest extends SimpleDbTestBase {
+    /** Tuples of two int columns that fill one page. */
+    private static final int TUPLES_PER_PAGE = 504;
+    private static final int POOL_PAGES = 4;
+    private static final int ROWS = 3 * POOL_PAGES * TUPLES_PER_PAGE;
+
+    private HeapFile source, destination;
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        source = SystemTestUtil.createRandomHeapFile(2, ROWS, null, new ArrayList<ArrayList<Integer>>());
+        File temp = File.createTempFile("steal", ".dat");
+        temp.deleteOnExit();
+        destination = Utility.createEmptyHeapFile(temp.getAbsolutePath(), 2);
+        Database.resetBufferPool(POOL_PAGES).setSteal(true);
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().setSteal(false);
+    }
+
+    /** Copies the source table into the destination as part of t. */
+    private void copyTable(Transaction t)
+            throws DbException, TransactionAbortedException {
+        Insert insOp = new Insert(t.getId(), new SeqScan(t.getId(), source.getId(), ""),
+                destination.getId());
+        insOp.open();
+        assertTrue(insOp.hasNext());
+        assertEquals(ROWS, ((IntField) insOp.next().getField(0)).getValue());
+        insOp.close();
+    }
+
+    private int countTuples() throws DbException, TransactionAbortedException, IOException {
+        Transaction t = new Transaction();
+        t.start();
+        SeqScan scan = new SeqScan(t.getId(), destination.getId(), "");
+        int count = 0;
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        t.commit();
+        return count;
+    }
+
+    /** A transaction may dirty many times more pages than the pool holds. */
+    @Test public void testCommitLargerThanPool()
+            throws IOException, DbException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        t.start();
+        copyTable(t);
+        t.commit();
+        assertTrue(destination.numPages() >= 3 * POOL_PAGES);
+        assertEquals(ROWS, countTuples());
+    }
+
+    /** Pages stolen from an aborted transaction are restored from the log. */
+    @Test public void testAbortLargerThanPool()
+            throws IOException, DbException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        t.start();
+        copyTable(t);
+        t.transactionComplete(true);
+        assertEquals(0, countTuples());
+    }
+
+    /**
+     * Pages written out while their transaction keeps changing them stay
+     * dirty until every change is on disk: none is lost at commit.
+     */
+    @Test public void testWriterRacesInserts() throws Exception {
+        final BufferPool bp = Database.getBufferPool();
+        final boolean[] done = { false };
+        final IOException[] error = { null };
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    while (!done[0]) {
+                        bp.flushAllPages();
+                    }
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        };
+        TransactionId tid = new TransactionId();
+        int rows = 20 * TUPLES_PER_PAGE;
+        writer.start();
+        try {
+            for (int i = 0; i < rows; ++i) {
+                bp.insertTuple(tid, destination.getId(), Utility.getHeapTuple(i, 2));
+            }
+        } finally {
+            done[0] = true;
+            writer.join();
+        }
+        assertNull(error[0]);
+        bp.transactionComplete(tid);
+
+        Database.resetBufferPool(POOL_PAGES);
+        assertEquals(rows, countTuples());
+    }
+
+    /**
+     * Commits to the same pages interleaved with the writer stealing them
+     * are all on disk in the end: a stolen image never overwrites a
+     * committed one.
+     */
+    @Test public void testWriterRacesCommits() throws Exception {
+        final BufferPool bp = Database.getBufferPool();
+        final boolean[] done = { false };
+        final IOException[] error = { null };
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    while (!done[0]) {
+                        bp.flushAllPages();
+                    }
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        };
+        int rows = 0;
+        writer.start();
+        try {
+            for (int i = 0; i < 200; ++i) {
+                TransactionId tid = new TransactionId();
+                for (int j = 0; j < 10; ++j) {
+                    bp.insertTuple(tid, destination.getId(), Utility.getHeapTuple(rows++, 2));
+                }
+                bp.transactionComplete(tid);
+            }
+        } finally {
+            done[0] = true;
+            writer.join();
+        }
+        assertNull(error[0]);
+
+        Database.resetBufferPool(POOL_PAGES);
+        assertEquals(rows, countTuples());
+    }
+
+    /**
+     * A group flush spanning several shards, at commit, races the writer
+     * and the evictions of each shard without losing a commit.
+     */
+    @Test public void testGroupFlushAcrossShards() throws Exception {
+        final BufferPool bp = Database.resetBufferPool(new BufferPool(2 * POOL_PAGES, POOL_PAGES));
+        bp.setSteal(true);
+        final boolean[] done = { false };
+        final IOException[] error = { null };
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    while (!done[0]) {
+                        bp.flushAllPages();
+                    }
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        };
+        int rows = 0;
+        writer.start();
+        try {
+            for (int i = 0; i < 10; ++i) {
+                TransactionId tid = new TransactionId();
+                for (int j = 0; j < TUPLES_PER_PAGE; ++j) {
+                    bp.insertTuple(tid, destination.getId(), Utility.getHeapTuple(rows++, 2));
+                }
+                bp.transactionComplete(tid);
+            }
+        } finally {
+            done[0] = true;
+            writer.join();
+        }
+        assertNull(error[0]);
+        assertEquals(POOL_PAGES, bp.numShards());
+        bp.setSteal(false);
+
+        Database.resetBufferPool(POOL_PAGES);
+        assertEquals(rows, countTuples());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(StealTest.class);
+    }
+}